@@ -0,0 +1,185 @@
+package com.brightcove.account.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *    Approximate count of how often each video id is looked up, in a fixed
+ *    amount of memory regardless of how many ids there are.
+ * </p>
+ * 
+ * <p>
+ *    A count-min sketch with four rows of 8 bit counters.  The four
+ *    counters for a slot share one int, so an id costs four hash lookups
+ *    into the same small table and the whole sketch is 4 bytes per slot.
+ *    Only the lowest of an id's counters are incremented, which keeps
+ *    collisions from inflating estimates more than they have to.  Once
+ *    there have been ten increments per slot, every counter is halved, so
+ *    the sketch follows what is popular now rather than what was popular
+ *    once.
+ * </p>
+ * 
+ * <p>
+ *    Saved layout (all values big endian):
+ * </p>
+ * <pre>
+ *     0  int  magic
+ *     4  int  format version
+ *     8  int  width (slots)
+ *    12  long increments since the last halving
+ *    20  int[width] counters
+ * </pre>
+ */
+public class AccessSketch {
+	public static final Integer MIN_WIDTH = 1 << 10;
+	public static final Integer MAX_WIDTH = 1 << 24;
+	
+	private static final int  MAGIC          = 0x42434153;
+	private static final int  FORMAT_VERSION = 1;
+	private static final int  HEADER_SIZE    = 20;
+	private static final int  DEPTH          = 4;
+	private static final int  MAX_COUNT      = 0xFF;
+	private static final int  HALF_MASK      = 0x7F7F7F7F;
+	private static final long SEED           = 0x9E3779B97F4A7C15l;
+	
+	private AtomicIntegerArray counters;
+	private AtomicLong         increments;
+	private int                width;
+	private long               resetAt;
+	
+	/**
+	 * @param expectedIds Roughly how many distinct ids will be counted
+	 */
+	public AccessSketch(Integer expectedIds){
+		this(Integer.highestOneBit(Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, expectedIds)) * 2 - 1), 0l);
+	}
+	
+	private AccessSketch(int width, long increments){
+		this.width      = width;
+		this.increments = new AtomicLong(increments);
+		
+		counters = new AtomicIntegerArray(width);
+		resetAt  = 10l * width;
+	}
+	
+	/**
+	 * <p>
+	 *    Counts one access to the given id.
+	 * </p>
+	 */
+	public void increment(long id){
+		long hash = spread(id);
+		int  min  = estimate(hash);
+		if(min < MAX_COUNT){
+			for(int row=0; row<DEPTH; row++){
+				int index = index(hash, row);
+				int shift = row * 8;
+				int value = counters.get(index);
+				while(((value >>> shift) & MAX_COUNT) == min){
+					if(counters.compareAndSet(index, value, value + (1 << shift))){
+						break;
+					}
+					value = counters.get(index);
+				}
+			}
+		}
+		
+		if(increments.incrementAndGet() >= resetAt){
+			halve();
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Estimated number of accesses to the given id since it was last
+	 *    halved.  Never less than the true count, and more only when the id
+	 *    shares all four of its counters with busier ids.
+	 * </p>
+	 */
+	public Integer getFrequency(long id){
+		return estimate(spread(id));
+	}
+	
+	private int estimate(long hash){
+		int min = MAX_COUNT;
+		for(int row=0; row<DEPTH; row++){
+			min = Math.min(min, (counters.get(index(hash, row)) >>> (row * 8)) & MAX_COUNT);
+		}
+		return min;
+	}
+	
+	private synchronized void halve(){
+		if(increments.get() < resetAt){
+			// Another thread got here first
+			return;
+		}
+		
+		for(int i=0; i<width; i++){
+			int value = counters.get(i);
+			while(! counters.compareAndSet(i, value, (value >>> 1) & HALF_MASK)){
+				value = counters.get(i);
+			}
+		}
+		increments.set(increments.get() / 2);
+	}
+	
+	private static long spread(long id){
+		// Brightcove ids are sequential, so mix them well before indexing
+		long hash = id * SEED;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDl;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	private int index(long hash, int row){
+		int h = (int)hash + (row * (int)(hash >>> 32));
+		return (h ^ (h >>> 16)) & (width - 1);
+	}
+	
+	/**
+	 * <p>
+	 *    Reads a sketch saved with {@link #toBytes()}, or returns null if
+	 *    there isn't one or it can't be read.
+	 * </p>
+	 */
+	public static AccessSketch fromBytes(byte[] bytes){
+		if(bytes == null){
+			return null;
+		}
+		
+		ByteBuffer data = ByteBuffer.wrap(bytes);
+		if((data.remaining() < HEADER_SIZE) || (data.getInt() != MAGIC) || (data.getInt() != FORMAT_VERSION)){
+			return null;
+		}
+		
+		int width = data.getInt();
+		if((Integer.bitCount(width) != 1) || (data.remaining() != 8 + (4 * width))){
+			return null;
+		}
+		
+		AccessSketch sketch = new AccessSketch(width, data.getLong());
+		for(int i=0; i<width; i++){
+			sketch.counters.set(i, data.getInt());
+		}
+		return sketch;
+	}
+	
+	public byte[] toBytes(){
+		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + (4 * width));
+		data.putInt(MAGIC);
+		data.putInt(FORMAT_VERSION);
+		data.putInt(width);
+		data.putLong(increments.get());
+		for(int i=0; i<width; i++){
+			data.putInt(counters.get(i));
+		}
+		return data.array();
+	}
+	
+	public Integer getWidth(){
+		return width;
+	}
+}
@@ -1,14 +1,32 @@
 package com.brightcove.account.cache;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -16,7 +34,6 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
-import org.apache.commons.io.FileUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -24,9 +41,11 @@ import org.w3c.dom.Node;
 import com.brightcove.account.cache.exceptions.AccountCacheException;
 import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
 import com.brightcove.commons.account.objects.BrightcoveAccount;
+import com.brightcove.commons.catalog.objects.Playlist;
 import com.brightcove.commons.catalog.objects.Video;
 import com.brightcove.commons.catalog.objects.Videos;
 import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+import com.brightcove.commons.catalog.objects.enumerations.PlaylistFieldEnum;
 import com.brightcove.commons.catalog.objects.enumerations.SortByTypeEnum;
 import com.brightcove.commons.catalog.objects.enumerations.SortOrderTypeEnum;
 import com.brightcove.commons.catalog.objects.enumerations.VideoFieldEnum;
@@ -42,32 +61,89 @@ public class AccountCache {
 	private Logger                  logger;
 	private Integer                 logLevel;
 	private Boolean                 includeDeletedVideos;
-	private File                    cacheFile;
+	private CacheStorage            storage;
 	private Boolean                 stripInvalidCharacters;
+	private Boolean                 readThrough;
+	private Long                    readThroughMissTtl;
+	private Long                    readThroughSaveDelay;
+	private Boolean                 cachePlaylists;
+	private Boolean                 readOnly;
+	private Boolean                 compressMetadata;
 	
 	public static final Integer LOG_SILENT        = 0;
 	public static final Integer LOG_INFORMATIONAL = 2;
 	public static final Integer LOG_DEBUG         = 5;
 	public static final Integer LOG_ALL           = 10;
 	
+	public static final Integer MAX_HISTOGRAM_BUCKETS = 10000;
+	
+	private static final Integer MAX_READ_THROUGH_MISSES = 10000;
+	private static final Integer CATALOG_THREADS         = 4;
+	private static final Integer CATALOG_BATCH_SIZE      = 100;
+	private static final Integer DICTIONARY_SAMPLE_SIZE  = 500;
+	private static final Integer SYNC_PAGE_SIZE          = 100;
+	private static final Integer INTEGRITY_THREADS       = 4;
+	
 	public static final Set<VideoStateFilterEnum> defaultVideoFilters = VideoStateFilterEnum.CreateFullSet();
 	public static final Set<String>               defaultCustomFields = CollectionUtils.CreateEmptyStringSet();
 	public static final EnumSet<VideoFieldEnum>   defaultVideoFields  = VideoFieldEnum.CreateFullEnumSet();
+	public static final EnumSet<PlaylistFieldEnum> defaultPlaylistFields = PlaylistFieldEnum.CreateFullEnumSet();
 	
 	private Map<Long,ItemStateEnum>   videosById;
 	private Map<String,Long>          videosByReferenceId;
 	private Map<Long,Date>            videoLastModifiedDates;
+	private Map<Long,Long>            videoFingerprints;
+	private OffHeapVideoIndex         offHeapIndex;
+	private Date                      syncWatermark;
+	private EnumSet<VideoFieldEnum>   syncVideoFields;
+	private Set<String>               syncCustomFields;
+	
+	private ConcurrentHashMap<String,FutureTask<Video>> readThroughRequests;
+	private ConcurrentHashMap<String,Long>              readThroughMisses;
+	private ScheduledExecutorService                    readThroughSaver;
+	private Boolean                                     readThroughSavePending;
+	
+	private PlaylistCache          playlistCache;
+	private volatile MetadataCodec metadataCodec;
+	private VideoIndexQuery        indexQuery;
+	private Long                   indexModifications;
+	
+	private List<VideoChangeListener>            changeListeners;
+	private List<BlockingQueue<VideoChangeEvent>> changeQueues;
+	private ChangeLog                            changeLog;
+	private Long                                 changeSequence;
+	private Long                                 droppedChangeEvents;
+	
+	private Integer                 syncWritten;
+	private Integer                 syncSkipped;
+	private ReadApiExceptionHandler exceptionHandler;
+	private volatile HotVideoSet    hotVideos;
+	
+	private volatile IntegrityChecker integrityChecker;
+	private volatile IntegrityReport  integrityReport;
+	private Set<Long>                 refetchQueue;
 	
 	public AccountCache(BrightcoveAccount account){
-		init(new ReadApi(), account, Logger.getLogger(this.getClass().getCanonicalName()), LOG_SILENT, new File("./cache.xml"), false);
+		init(new ReadApi(), account, Logger.getLogger(this.getClass().getCanonicalName()), LOG_SILENT, new FileCacheStorage(new File("./cache.xml")), false);
 	}
 	
 	public AccountCache(BrightcoveAccount account, File cacheFile){
-		init(new ReadApi(), account, Logger.getLogger(this.getClass().getCanonicalName()), LOG_SILENT, cacheFile, false);
+		init(new ReadApi(), account, Logger.getLogger(this.getClass().getCanonicalName()), LOG_SILENT, new FileCacheStorage(cacheFile), false);
 	}
 	
 	public AccountCache(BrightcoveAccount account, File cacheFile, ReadApi readApi, Logger logger, Integer logLevel, Boolean includeDeletedVideos){
-		init(readApi, account, logger, logLevel, cacheFile, includeDeletedVideos);
+		init(readApi, account, logger, logLevel, new FileCacheStorage(cacheFile), includeDeletedVideos);
+	}
+	
+	/**
+	 * <p>
+	 *    Keeps the cache in the given storage rather than in files named
+	 *    after a cache file.  A memory mapped off-heap index and a
+	 *    {@link SharedCacheCoordinator} both still need file storage.
+	 * </p>
+	 */
+	public AccountCache(BrightcoveAccount account, CacheStorage storage, ReadApi readApi, Logger logger, Integer logLevel, Boolean includeDeletedVideos){
+		init(readApi, account, logger, logLevel, storage, includeDeletedVideos);
 	}
 	
 	public static AccountCache getUpdatedCache(BrightcoveAccount account, File cacheFile, ReadApi readApi, Logger logger, Integer logLevel, Boolean includeDeletedVideos) throws AccountCacheException {
@@ -78,30 +154,94 @@ public class AccountCache {
 		return cache;
 	}
 	
-	private void init(ReadApi readApi, BrightcoveAccount account, Logger logger, Integer logLevel, File cacheFile, Boolean includeDeletedVideos){
+	public static AccountCache getUpdatedCache(BrightcoveAccount account, CacheStorage storage, ReadApi readApi, Logger logger, Integer logLevel, Boolean includeDeletedVideos) throws AccountCacheException {
+		AccountCache cache = new AccountCache(account, storage, readApi, logger, logLevel, includeDeletedVideos);
+		cache.Deserialize();
+		cache.UpdateCache();
+		cache.Serialize();
+		return cache;
+	}
+	
+	private void init(ReadApi readApi, BrightcoveAccount account, Logger logger, Integer logLevel, CacheStorage storage, Boolean includeDeletedVideos){
 		this.readApi              = readApi;
 		this.account              = account;
 		this.logger               = logger;
 		this.logLevel             = logLevel;
-		this.cacheFile            = cacheFile;
+		this.storage              = storage;
 		this.includeDeletedVideos = includeDeletedVideos;
 		
 		stripInvalidCharacters = true;
-		videosById             = new HashMap<Long, ItemStateEnum>();
-		videosByReferenceId    = new HashMap<String, Long>();
-		videoLastModifiedDates = new HashMap<Long, Date>();
+		readThrough            = false;
+		readThroughMissTtl     = 60000l;
+		readThroughSaveDelay   = 5000l;
+		readThroughSavePending = false;
+		syncVideoFields        = defaultVideoFields;
+		syncCustomFields       = defaultCustomFields;
+		readThroughRequests    = new ConcurrentHashMap<String, FutureTask<Video>>();
+		readThroughMisses      = new ConcurrentHashMap<String, Long>();
+		cachePlaylists         = false;
+		readOnly               = false;
+		compressMetadata       = false;
+		playlistCache          = new PlaylistCache(this);
+		metadataCodec          = new MetadataCodec(storage);
+		videosById             = new StateCountingMap(new HashMap<Long, ItemStateEnum>());
+		videosByReferenceId    = Collections.synchronizedMap(new HashMap<String, Long>());
+		videoLastModifiedDates = Collections.synchronizedMap(new HashMap<Long, Date>());
+		videoFingerprints      = Collections.synchronizedMap(new HashMap<Long, Long>());
+		indexQuery             = new VideoIndexQuery(this);
+		indexModifications     = 0l;
+		changeListeners        = new CopyOnWriteArrayList<VideoChangeListener>();
+		changeQueues           = new CopyOnWriteArrayList<BlockingQueue<VideoChangeEvent>>();
+		changeSequence         = 0l;
+		droppedChangeEvents    = 0l;
+		syncWritten            = 0;
+		syncSkipped            = 0;
+		exceptionHandler       = new ReadApiExceptionHandler();
+		refetchQueue           = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 		
-		readApi.setBrightcoveExceptionHandler(new ReadApiExceptionHandler());
+		readApi.setBrightcoveExceptionHandler(exceptionHandler);
 	}
 	
 	public void UpdateCache() throws AccountCacheException {
-		UpdateCache(null, null, null);
+		UpdateCache(null, null, null, null);
 	}
 	
 	public void UpdateCache(EnumSet<VideoFieldEnum> videoFields, Set<VideoStateFilterEnum> videoFilters, Set<String> customFields) throws AccountCacheException {
+		UpdateCache(videoFields, videoFilters, customFields, null);
+	}
+	
+	public SyncProgress UpdateCache(SyncToken token) throws AccountCacheException {
+		return UpdateCache(null, null, null, token);
+	}
+	
+	/**
+	 * <p>
+	 *    Reads modified videos from the Media API until it reaches the sync
+	 *    watermark, or until the token is cancelled or its deadline passes.
+	 * </p>
+	 * 
+	 * <p>
+	 *    The token is only checked between pages, and a pending Read API
+	 *    retry is given up as soon as it is stopped.  A stopped sync still
+	 *    writes out the videos it read (indexes and metadata), leaves the
+	 *    watermark where it was and saves its progress, so the next sync
+	 *    picks up about where this one left off.
+	 * </p>
+	 * 
+	 * <p>
+	 *    A sync that reaches the watermark then fetches again the videos an
+	 *    integrity check found missing or damaged (see
+	 *    {@link #checkIntegrity()}).
+	 * </p>
+	 * 
+	 * @param token Deadline / cancellation for this sync, or null to run to the end
+	 * @return How far the sync got
+	 */
+	public SyncProgress UpdateCache(EnumSet<VideoFieldEnum> videoFields, Set<VideoStateFilterEnum> videoFilters, Set<String> customFields, SyncToken token) throws AccountCacheException {
 		if((readApi == null) || (account == null)){
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Must set ReadApi and BrightcoveAccount via appropriate constructor before using UpdateCache().");
 		}
+		checkWritable("UpdateCache()");
 		
 		if(videoFields == null){
 			videoFields = defaultVideoFields;
@@ -112,6 +252,10 @@ public class AccountCache {
 		if(customFields == null){
 			customFields = defaultCustomFields;
 		}
+		syncVideoFields  = videoFields;
+		syncCustomFields = customFields;
+		syncWritten      = 0;
+		syncSkipped      = 0;
 		
 		info("Determining latest modified date in current cache.");
 		Date cacheLatestModified = new Date();
@@ -120,58 +264,219 @@ public class AccountCache {
 		if(videoLastModifiedDates.keySet().size() != videosById.keySet().size()){
 			info("    Correcting cache file for last modified dates.");
 			
-			for(Long videoId : videosById.keySet()){
-				Video video        = getVideoMetadata(videoId);
-				Date  lastModified = video.getLastModifiedDate();
-				videoLastModifiedDates.put(videoId, lastModified);
+			for(Long videoId : copyKeys(videosById)){
+				Video video = readVideoMetadata(videoId);
+				if(video == null){
+					// Record missing or unreadable - leave the date out and
+					// have it fetched again rather than fail the whole sync
+					debug("    No readable metadata for video '" + videoId + "', queueing it for re-fetch.");
+					queueRefetch(videoId);
+					continue;
+				}
+				
+				Date lastModified = video.getLastModifiedDate();
+				if(lastModified != null){
+					videoLastModifiedDates.put(videoId, lastModified);
+				}
 			}
+			indexModifications++;
 		}
 		
-		for(Long videoId : videoLastModifiedDates.keySet()){
-			Date  lastModified = videoLastModifiedDates.get(videoId);
-			if(lastModified != null){
-				if(lastModified.after(cacheLatestModified)){
-					cacheLatestModified = lastModified;
+		// Videos pulled in by read-through can be newer than the last sync, so
+		// once a sync has completed its watermark is used instead of the index
+		if(syncWatermark != null){
+			cacheLatestModified = syncWatermark;
+		}
+		else{
+			for(Long videoId : copyKeys(videoLastModifiedDates)){
+				Date  lastModified = videoLastModifiedDates.get(videoId);
+				if(lastModified != null){
+					if(lastModified.after(cacheLatestModified)){
+						cacheLatestModified = lastModified;
+					}
 				}
 			}
 		}
+		
+		// An earlier sync that stopped part way never moved the watermark, so
+		// its target is still the right place to stop
+		SyncProgress resume = SyncProgress.read(storage);
+		if((resume != null) && resume.isResumable() && ((syncWatermark == null) || syncWatermark.equals(resume.getTarget()))){
+			cacheLatestModified = resume.getTarget();
+			info("Resuming stopped sync (" + resume.getFloor() + " to " + resume.getCeiling() + " already read).");
+		}
+		else{
+			resume = null;
+		}
 		info("Latest modified date: '" + cacheLatestModified + "'.");
 		
+		Date         syncLatestModified = cacheLatestModified;
+		SyncProgress progress           = new SyncProgress(cacheLatestModified);
+		Integer      newer              = 0;
+		
 		info("Updating cache from Media API...");
 		
-		Integer pageNumber = 0;
-		Videos  page       = getPage(pageNumber, videoFields, videoFilters, customFields);
-		while((page != null) && (page.size() > 0)){
-			debug("Reading page '" + pageNumber + "'.");
-			
-			Boolean cont = true;
-			for(Video video : page){
-				Long   videoId           = video.getId();
-				String refId             = video.getReferenceId();
-				Date   videoLastModified = video.getLastModifiedDate();
+		exceptionHandler.setSyncToken(token);
+		try {
+			Integer pageNumber = 0;
+			Videos  page       = getPage(pageNumber, videoFields, videoFilters, customFields, token);
+			while((page != null) && (page.size() > 0)){
+				debug("Reading page '" + pageNumber + "'.");
 				
-				if(cont){
-					debug("    Read video [" + videoId + "," + refId + "] (" + videoLastModified + ").");
+				Boolean cont      = true;
+				Boolean covered   = false;
+				Date    pageFloor = null;
+				for(Video video : page){
+					Long   videoId           = video.getId();
+					String refId             = video.getReferenceId();
+					Date   videoLastModified = video.getLastModifiedDate();
+					
+					if(cont){
+						debug("    Read video [" + videoId + "," + refId + "] (" + videoLastModified + ").");
+					}
+					
+					addVideo(video);
+					
+					if(videoLastModified == null){
+						continue;
+					}
+					
+					if(videoLastModified.after(syncLatestModified)){
+						syncLatestModified = videoLastModified;
+					}
+					
+					if(videoLastModified.before(cacheLatestModified)){
+						debug("    Found a video older than the most recent video in the cache.  Assuming we're done (but will finish the page we're on)...");
+						cont = false;
+					}
+					
+					if((pageFloor == null) || videoLastModified.before(pageFloor)){
+						pageFloor = videoLastModified;
+					}
+					
+					if(resume != null){
+						if(videoLastModified.after(resume.getCeiling())){
+							newer++;
+						}
+						else{
+							covered = true;
+						}
+					}
 				}
+				progress.pageRead((pageNumber * SYNC_PAGE_SIZE) + page.size(), page.size(), pageFloor, syncLatestModified);
 				
-				addVideo(video);
+				if(! cont){
+					break;
+				}
 				
-				if((videoLastModified != null) && videoLastModified.before(cacheLatestModified)){
-					debug("    Found a video older than the most recent video in the cache.  Assuming we're done (but will finish the page we're on)...");
-					cont = false;
+				Integer nextPage = pageNumber + 1;
+				if(covered){
+					// Everything modified since the stopped sync has been read now,
+					// and what that sync covered has moved down by as many places
+					Integer resumePage = (resume.getPosition() + newer) / SYNC_PAGE_SIZE;
+					Date    floor      = resume.getFloor();
+					resume = null;
+					
+					if(resumePage > nextPage){
+						info("Skipping ahead to page '" + resumePage + "'.");
+						
+						// Videos it covered that were modified again have moved to the
+						// top instead, so back up until the page starts above its floor
+						pageNumber = resumePage;
+						page       = getPage(pageNumber, videoFields, videoFilters, customFields, token);
+						while((page != null) && (pageNumber > nextPage) && (! startsAfter(page, floor))){
+							pageNumber--;
+							page = getPage(pageNumber, videoFields, videoFilters, customFields, token);
+						}
+						continue;
+					}
 				}
+				
+				pageNumber = nextPage;
+				page       = getPage(pageNumber, videoFields, videoFilters, customFields, token);
 			}
 			
-			if(cont){
-				pageNumber++;
-				page = getPage(pageNumber, videoFields, videoFilters, customFields);
-			}
-			else{
-				page = null;
+			// Only a stopped sync comes out of the loop without a page
+			progress.setComplete(page != null);
+			
+			if(progress.isComplete()){
+				refetchQueued(videoFields, customFields, token);
 			}
 		}
+		catch(AccountCacheException ace){
+			// Out of retries - keep what was read rather than throwing it away
+			commitSync(progress, resume, cacheLatestModified);
+			throw ace;
+		}
+		finally {
+			exceptionHandler.setSyncToken(null);
+		}
+		
+		if(progress.isComplete()){
+			syncWatermark = syncLatestModified;
+		}
+		info("Videos written: " + syncWritten + ", skipped as unchanged: " + syncSkipped + ".");
 		
-		Serialize();
+		commitSync(progress, resume, cacheLatestModified);
+		
+		// After the commit, so a failure here can't lose the video sync
+		if(progress.isComplete() && cachePlaylists){
+			try {
+				UpdatePlaylists();
+			}
+			catch(AccountCacheException ace){
+				info("Couldn't update playlists (" + ace + ").  Leaving them for the next sync.");
+			}
+		}
+		return progress;
+	}
+	
+	/**
+	 * <p>
+	 *    Writes out the indexes after a sync, then records its progress.  In
+	 *    that order, saved progress never claims videos the indexes don't
+	 *    have.
+	 * </p>
+	 * 
+	 * @param resume Progress of an earlier stopped sync this one didn't get as far as, if any
+	 */
+	private void commitSync(SyncProgress progress, SyncProgress resume, Date target) throws AccountCacheException {
+		// An interrupt would close the channels being written to
+		Boolean interrupted = Thread.interrupted();
+		try {
+			if(! progress.isComplete()){
+				// Saved as well, in case it was worked out from the index
+				syncWatermark = target;
+			}
+			Serialize();
+			
+			if(progress.isComplete()){
+				try {
+					storage.deleteBlob(SyncProgress.BLOB_NAME);
+				}
+				catch(IOException ioe){
+					// Harmless - its target no longer matches the watermark
+					info("Couldn't remove sync progress (" + ioe + ").");
+				}
+			}
+			else if((resume == null) && progress.isResumable()){
+				progress.write(storage);
+				info("Sync " + progress + ", next sync resumes from there.");
+			}
+		}
+		finally {
+			if(interrupted){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private static Boolean startsAfter(Videos page, Date date){
+		if(page.size() == 0){
+			return false;
+		}
+		Date lastModified = page.get(0).getLastModifiedDate();
+		return (lastModified != null) && lastModified.after(date);
 	}
 	
 	public void Serialize() throws AccountCacheException {
@@ -179,36 +484,80 @@ public class AccountCache {
 	}
 	
 	public void Serialize(Boolean stripInvalidCharacters) throws AccountCacheException {
+		checkWritable("Serialize()");
+		
+		// Read-through adds made from here on are left for the next save
+		clearReadThroughSave();
+		
+		if(changeLog != null){
+			try {
+				changeLog.sync();
+			}
+			catch(IOException ioe){
+				throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to sync change log.");
+			}
+		}
+		
+		if(cachePlaylists){
+			playlistCache.serialize(stripInvalidCharacters);
+		}
+		
+		if((offHeapIndex != null) && offHeapIndex.isPersistent()){
+			info("Flushing off-heap index to '" + offHeapIndex.getFile().getAbsolutePath() + "'.");
+			if(syncWatermark != null){
+				offHeapIndex.setSyncWatermark(syncWatermark.getTime());
+			}
+			offHeapIndex.force();
+			
+			// The snapshot is still written, so a process opening the cache
+			// without the off-heap index doesn't start from a stale one
+		}
+		
 		try {
 			Document doc  = XalanUtils.createDocument("Videos");
 			Element  root = doc.getDocumentElement();
 			
+			if(syncWatermark != null){
+				root.setAttribute("syncWatermark", ""+syncWatermark.getTime());
+			}
+			
 			Element byId = doc.createElement("VideosById");
 			root.appendChild(byId);
 			
-			for(Long videoId : videosById.keySet()){
+			for(Long videoId : copyKeys(videosById)){
 				Element video = doc.createElement("Video");
 				byId.appendChild(video);
 				
 				video.setAttribute("id", ""+videoId);
 				video.setAttribute("state", ""+videosById.get(videoId));
+				
+				Long fingerprint = getFingerprint(videoId);
+				if(fingerprint != null){
+					video.setAttribute("fingerprint", ""+fingerprint);
+				}
 			}
 			
 			Element byRef = doc.createElement("VideosByReferenceId");
 			root.appendChild(byRef);
 			
-			for(String refId : videosByReferenceId.keySet()){
+			for(String refId : copyKeys(videosByReferenceId)){
+				Long videoId = videosByReferenceId.get(refId);
+				if(videoId == null){
+					// Removed since the keys were copied
+					continue;
+				}
+				
 				Element video = doc.createElement("Video");
 				byRef.appendChild(video);
 				
 				video.setAttribute("referenceId", refId);
-				video.setAttribute("id", ""+videosByReferenceId.get(refId));
+				video.setAttribute("id", ""+videoId);
 			}
 			
 			Element byDate = doc.createElement("VideosByDate");
 			root.appendChild(byDate);
 			
-			for(Long videoId : videoLastModifiedDates.keySet()){
+			for(Long videoId : copyKeys(videoLastModifiedDates)){
 				Element video = doc.createElement("Video");
 				byDate.appendChild(video);
 				
@@ -226,7 +575,7 @@ public class AccountCache {
 			}
 			
 			String   xmlString = XalanUtils.prettyPrintWithTrAX(doc);
-			FileUtils.writeStringToFile(cacheFile, xmlString, "UTF-8");
+			storage.writeIndexSnapshot(xmlString.getBytes("UTF-8"));
 		}
 		catch (ParserConfigurationException pce) {
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + pce + " trying to generate XML from account videos.");
@@ -240,8 +589,39 @@ public class AccountCache {
 	}
 	
 	public void Deserialize() throws AccountCacheException {
-		videosById          = new HashMap<Long, ItemStateEnum>();
-		videosByReferenceId = new HashMap<String, Long>();
+		if(cachePlaylists){
+			playlistCache.deserialize();
+		}
+		
+		if(offHeapIndex != null){
+			// A read-only mapping is owned by another process, so it's used as
+			// it is even if still empty - that process fills it in
+			if(offHeapIndex.isPersistent() && ((! offHeapIndex.isEmpty()) || offHeapIndex.isReadOnly())){
+				info("Using off-heap index mapped from '" + offHeapIndex.getFile().getAbsolutePath() + "'.  Total videos: " + offHeapIndex.getStateCount() + ".");
+				
+				syncWatermark = null;
+				if(offHeapIndex.getSyncWatermark() != 0l){
+					syncWatermark = new Date(offHeapIndex.getSyncWatermark());
+				}
+				retainHotVideos();
+				return;
+			}
+			// Dates and fingerprints too - left over, they'd throw off the
+			// unchanged check and date queries for the reloaded videos
+			offHeapIndex.clear();
+		}
+		
+		// Heap indexes are read into new maps and swapped in at the end, so
+		// lookups keep working off the old index while a reload is going on
+		Map<Long,ItemStateEnum> byId   = videosById;
+		Map<String,Long>        byRef  = videosByReferenceId;
+		Map<Long,Date>          byDate = videoLastModifiedDates;
+		Map<Long,Long>          byPrint = new HashMap<Long, Long>();
+		if(offHeapIndex == null){
+			byId   = new HashMap<Long, ItemStateEnum>();
+			byRef  = new HashMap<String, Long>();
+			byDate = new HashMap<Long, Date>();
+		}
 		
 		info("Reading cache from disk...");
 		
@@ -256,12 +636,17 @@ public class AccountCache {
 			DocumentBuilder builder = factory.newDocumentBuilder();
 			// builder.setErrorHandler(new DefaultErrorHandler(true));
 			
-			doc = builder.parse(cacheFile);
-			
-			// String xml = FileUtils.readFileToString(cacheFile, "UTF-8");
+			byte[] snapshot = storage.readIndexSnapshot();
+			if(snapshot == null){
+				info("No cache index stored.  Starting from scratch.");
+				swapIndexes(byId, byRef, byDate, byPrint);
+				return;
+			}
+			doc = builder.parse(new ByteArrayInputStream(snapshot));
 		}
 		catch(Exception e){
 			info("Couldn't read videos from cache file.  Starting from scratch.");
+			swapIndexes(byId, byRef, byDate, byPrint);
 			return;
 		}
 		
@@ -270,6 +655,12 @@ public class AccountCache {
 			String deleted  = ItemStateEnum.DELETED.toString();
 			String inactive = ItemStateEnum.INACTIVE.toString();
 			
+			syncWatermark = null;
+			String watermarkString = doc.getDocumentElement().getAttribute("syncWatermark");
+			if((watermarkString != null) && (watermarkString.length() > 0)){
+				syncWatermark = new Date(Long.parseLong(watermarkString));
+			}
+			
 			info("    Extracting videos by id.");
 			List<Node> videos = XalanUtils.getNodesFromXPath(doc, "/Videos/VideosById/Video");
 			if(videos != null){
@@ -289,21 +680,26 @@ public class AccountCache {
 						minutia("        Processed " + curIdx + " of " + total + " (" + rate + "/sec by id).");
 					}
 					
-					String idString        = ((Element)video).getAttribute("id");
-					String itemStateString = ((Element)video).getAttribute("state");
+					String idString          = ((Element)video).getAttribute("id");
+					String itemStateString   = ((Element)video).getAttribute("state");
+					String fingerprintString = ((Element)video).getAttribute("fingerprint");
 					
 					// String idString        = XalanUtils.getStringFromXPath(video, "@id");
 					// String itemStateString = XalanUtils.getStringFromXPath(video, "@state");
 					
 					Long id = Long.parseLong(idString);
 					if(active.equals(itemStateString)){
-						videosById.put(id, ItemStateEnum.ACTIVE);
+						byId.put(id, ItemStateEnum.ACTIVE);
 					}
 					else if(deleted.equals(itemStateString)){
-						videosById.put(id, ItemStateEnum.DELETED);
+						byId.put(id, ItemStateEnum.DELETED);
 					}
 					else if(inactive.equals(itemStateString)){
-						videosById.put(id, ItemStateEnum.INACTIVE);
+						byId.put(id, ItemStateEnum.INACTIVE);
+					}
+					
+					if((fingerprintString != null) && (fingerprintString.length() > 0)){
+						byPrint.put(id, Long.parseLong(fingerprintString));
 					}
 				}
 			}
@@ -334,7 +730,7 @@ public class AccountCache {
 					// String idString = XalanUtils.getStringFromXPath(video, "@id");
 					
 					Long id = Long.parseLong(idString);
-					videosByReferenceId.put(refId, id);
+					byRef.put(refId, id);
 				}
 			}
 			
@@ -369,7 +765,7 @@ public class AccountCache {
 					
 					date.setTime(time);
 					
-					videoLastModifiedDates.put(id, date);
+					byDate.put(id, date);
 				}
 			}
 		}
@@ -377,36 +773,252 @@ public class AccountCache {
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + te + " trying to read XML from videos cache.");
 		}
 		
+		swapIndexes(byId, byRef, byDate, byPrint);
 		info("Cache read.  Total videos: " + videosById.keySet().size() + ".");
 	}
 	
+	private synchronized void swapIndexes(Map<Long,ItemStateEnum> byId, Map<String,Long> byRef, Map<Long,Date> byDate, Map<Long,Long> byPrint){
+		if(offHeapIndex != null){
+			// Everything else was read straight into the off-heap index
+			for(Map.Entry<Long,Long> entry : byPrint.entrySet()){
+				offHeapIndex.putFingerprint(entry.getKey(), entry.getValue());
+			}
+		}
+		else{
+			videosById             = new StateCountingMap(byId);
+			videosByReferenceId    = Collections.synchronizedMap(byRef);
+			videoLastModifiedDates = Collections.synchronizedMap(byDate);
+			videoFingerprints      = Collections.synchronizedMap(byPrint);
+			indexModifications++;
+		}
+		retainHotVideos();
+	}
+	
+	Long getFingerprint(Long videoId){
+		if(offHeapIndex != null){
+			long fingerprint = offHeapIndex.getFingerprint(videoId);
+			return (fingerprint == OffHeapVideoIndex.NO_FINGERPRINT) ? null : fingerprint;
+		}
+		return videoFingerprints.get(videoId);
+	}
+	
+	private void putFingerprint(Long videoId, Long fingerprint){
+		if(offHeapIndex != null){
+			offHeapIndex.putFingerprint(videoId, fingerprint);
+		}
+		else{
+			videoFingerprints.put(videoId, fingerprint);
+		}
+		dropHotVideo(videoId);
+	}
+	
+	private void removeFingerprint(Long videoId){
+		if(offHeapIndex != null){
+			offHeapIndex.removeFingerprint(videoId);
+		}
+		else{
+			videoFingerprints.remove(videoId);
+		}
+		dropHotVideo(videoId);
+	}
+	
+	/**
+	 * <p>
+	 *    Every call returns a newly parsed video, so callers are free to
+	 *    modify it.  Videos in the hot set (see
+	 *    {@link #enableAccessTracking(Integer, Long)}) are parsed from XML
+	 *    held in memory instead of read from disk.
+	 * </p>
+	 */
 	public Video getVideoMetadata(Long videoId){
-		File metadataFile = idToMetadataFile(videoId);
-		
-		try {
-			Document doc = XalanUtils.parseXml(metadataFile, false);
-			Videos videos = new Videos(doc);
-			if((videos == null) || (videos.size() < 1)){
-				return null;
+		HotVideoSet hot = hotVideos;
+		if((hot != null) && (videoId != null)){
+			hot.recordAccess(videoId);
+			byte[] xml = hot.getXml(videoId);
+			if(xml != null){
+				try {
+					return parseVideo(new String(xml, "UTF-8"));
+				}
+				catch (Exception e) {
+					// Falls back to the stored copy
+				}
 			}
-			return videos.get(0);
+		}
+		return readVideoMetadata(videoId);
+	}
+	
+	/**
+	 * <p>
+	 *    Reads a video's metadata from disk, without counting it as a lookup.
+	 * </p>
+	 */
+	Video readVideoMetadata(Long videoId){
+		try {
+			return parseVideo(readVideoXml(videoId));
 		}
 		catch (Exception e) {
 			return null;
 		}
 	}
 	
-	private File idToMetadataFile(Long id){
-		if(id == null){
+	static Video parseVideo(String xml) throws Exception {
+		if(xml == null){
+			return null;
+		}
+		Document doc = XalanUtils.parseXml(xml);
+		Videos videos = new Videos(doc);
+		if((videos == null) || (videos.size() < 1)){
 			return null;
 		}
-		String[] parts = (""+id).split("");
-		return new File(cacheFile.getAbsolutePath() + ".metadata/" + CollectionUtils.JoinToString(parts, "/") + "/" + id + ".xml");
+		return videos.get(0);
+	}
+	
+	// ---------------- Off-heap index ---------------------------
+	public void enableOffHeapIndex(Boolean memoryMapped) throws AccountCacheException {
+		if(offHeapIndex != null){
+			return;
+		}
+		
+		OffHeapVideoIndex index = null;
+		if(memoryMapped){
+			if(getCacheFile() == null){
+				throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "A memory mapped off-heap index needs file storage, use enableOffHeapIndex(false) instead.");
+			}
+			
+			File indexFile = getOffHeapIndexFile();
+			info("Mapping off-heap index '" + indexFile.getAbsolutePath() + "'" + (readOnly ? " read-only." : "."));
+			try {
+				index = OffHeapVideoIndex.open(indexFile, readOnly);
+			}
+			catch(IOException ioe){
+				if(readOnly){
+					// Only the writer may rebuild the file
+					throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "Caught " + ioe + " trying to map off-heap index '" + indexFile.getAbsolutePath() + "' read-only.");
+				}
+				info("    Couldn't map existing index (" + ioe + ").  Rebuilding it.");
+				if(! indexFile.delete()){
+					throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "Couldn't remove unusable off-heap index '" + indexFile.getAbsolutePath() + "'.");
+				}
+				try {
+					index = OffHeapVideoIndex.open(indexFile);
+				}
+				catch(IOException ioe2){
+					throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "Caught " + ioe2 + " trying to create off-heap index '" + indexFile.getAbsolutePath() + "'.");
+				}
+			}
+		}
+		else{
+			info("Allocating off-heap index in direct memory.");
+			index = OffHeapVideoIndex.allocate();
+		}
+		
+		if(index.isEmpty() && (! index.isReadOnly())){
+			debug("    Copying " + videosById.size() + " videos into off-heap index.");
+			index.getStateMap().putAll(videosById);
+			index.getReferenceIdMap().putAll(videosByReferenceId);
+			index.getLastModifiedMap().putAll(videoLastModifiedDates);
+			for(Long videoId : copyKeys(videoFingerprints)){
+				Long fingerprint = videoFingerprints.get(videoId);
+				if(fingerprint != null){
+					index.putFingerprint(videoId, fingerprint);
+				}
+			}
+		}
+		videoFingerprints = Collections.synchronizedMap(new HashMap<Long, Long>());
+		
+		offHeapIndex           = index;
+		videosById             = index.getStateMap();
+		indexModifications++;
+		videosByReferenceId    = index.getReferenceIdMap();
+		videoLastModifiedDates = index.getLastModifiedMap();
+	}
+	
+	public void disableOffHeapIndex() throws AccountCacheException {
+		if(offHeapIndex == null){
+			return;
+		}
+		
+		videosById             = new StateCountingMap(new HashMap<Long, ItemStateEnum>(videosById));
+		indexModifications++;
+		videosByReferenceId    = Collections.synchronizedMap(new HashMap<String, Long>(videosByReferenceId));
+		videoLastModifiedDates = Collections.synchronizedMap(new HashMap<Long, Date>(videoLastModifiedDates));
+		videoFingerprints      = Collections.synchronizedMap(new HashMap<Long, Long>());
+		for(Long videoId : copyKeys(videosById)){
+			long fingerprint = offHeapIndex.getFingerprint(videoId);
+			if(fingerprint != OffHeapVideoIndex.NO_FINGERPRINT){
+				videoFingerprints.put(videoId, fingerprint);
+			}
+		}
+		
+		try {
+			offHeapIndex.close();
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "Caught " + ioe + " trying to close off-heap index.");
+		}
+		finally {
+			offHeapIndex = null;
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Drops the current mapping of the off-heap index file and maps it
+	 *    again, read-only if the cache is.  Needed by processes sharing a
+	 *    cache directory, since the writer replaces the file when the index
+	 *    has to grow, and a process taking over or giving up as the writer
+	 *    has to switch mappings.
+	 * </p>
+	 */
+	public synchronized void reopenOffHeapIndex() throws AccountCacheException {
+		if((offHeapIndex == null) || (! offHeapIndex.isPersistent())){
+			return;
+		}
+		
+		OffHeapVideoIndex index = null;
+		try {
+			index = OffHeapVideoIndex.open(getOffHeapIndexFile(), readOnly);
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_INDEX_EXCEPTION, "Caught " + ioe + " trying to map off-heap index '" + getOffHeapIndexFile().getAbsolutePath() + "'.");
+		}
+		
+		OffHeapVideoIndex previous = offHeapIndex;
+		offHeapIndex           = index;
+		videosById             = index.getStateMap();
+		indexModifications++;
+		videosByReferenceId    = index.getReferenceIdMap();
+		videoLastModifiedDates = index.getLastModifiedMap();
+		
+		try {
+			previous.close();
+		}
+		catch(IOException ioe){
+			info("Couldn't close previous off-heap index mapping (" + ioe + ").");
+		}
+	}
+	
+	public OffHeapVideoIndex getOffHeapIndex(){
+		return offHeapIndex;
+	}
+	
+	private File getOffHeapIndexFile(){
+		return new File(getCacheFile().getAbsolutePath() + ".index");
 	}
 	
-	private Videos getPage(Integer pageNumber, EnumSet<VideoFieldEnum> videoFields, Set<VideoStateFilterEnum> videoFilters, Set<String> customFields) throws AccountCacheException {
+	/**
+	 * <p>
+	 *    Returns null, rather than throwing, if the token was stopped before
+	 *    or while reading the page.
+	 * </p>
+	 */
+	private Videos getPage(Integer pageNumber, EnumSet<VideoFieldEnum> videoFields, Set<VideoStateFilterEnum> videoFilters, Set<String> customFields, SyncToken token) throws AccountCacheException {
+		if((token != null) && token.isStopped()){
+			return null;
+		}
+		
 		Long                    fromDate      = 0l;
-		Integer                 pageSize      = 100;
+		Integer                 pageSize      = SYNC_PAGE_SIZE;
 		SortByTypeEnum          sortBy        = SortByTypeEnum.MODIFIED_DATE;
 		SortOrderTypeEnum       sortOrderType = SortOrderTypeEnum.DESC;
 		
@@ -417,11 +1029,15 @@ public class AccountCache {
 			return videos;
 		}
 		catch (BrightcoveException be) {
+			if((token != null) && token.isStopped()){
+				debug("Sync stopped while reading page '" + pageNumber + "'.");
+				return null;
+			}
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + be + " trying to generate XML from account videos (via JSON libraries).");
 		}
 	}
 	
-	private void addVideo(Video video) throws AccountCacheException {
+	private synchronized void addVideo(Video video) throws AccountCacheException {
 		if(video == null){
 			debug("Asked to add null video to cache.  Ignoring.");
 			return;
@@ -437,16 +1053,30 @@ public class AccountCache {
 		}
 		debug("Attempting to add video (" + id + "," + refId + "," + lastModifiedString + "," + itemState + ") to cache.");
 		
-		Video found = null;
-		if(id != null){
-			found = getVideoByIdUnfiltered(id);
-		}
-		else{
+		if(id == null){
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_FIELDS, "Video has no Video Id, can't add to cache.");
 		}
 		
+		// Pages are finished past the watermark, so most videos seen by a sync
+		// are already cached exactly as they are.  Comparing fingerprints of
+		// the serialized form avoids reading, removing and rewriting them.
+		String  xml     = videoToXml(video);
+		Long    print   = fingerprint(xml);
+		Boolean discard = ItemStateEnum.DELETED.equals(itemState) && (! includeDeletedVideos);
+		if((! discard) && print.equals(getFingerprint(id)) && videosById.containsKey(id)){
+			debug("    Video unchanged since it was cached, skipping.");
+			syncSkipped++;
+			return;
+		}
+		
+		// Not a lookup, so it mustn't count towards the hot set
+		Video found = readVideoMetadata(id);
+		
 		if((found == null) && (refId != null)){
-			found = getVideoByReferenceIdUnfiltered(refId);
+			Long refVideoId = videosByReferenceId.get(refId);
+			if(refVideoId != null){
+				found = readVideoMetadata(refVideoId);
+			}
 		}
 		
 		if((itemState != null) && ItemStateEnum.DELETED.equals(itemState)){
@@ -461,23 +1091,25 @@ public class AccountCache {
 				if(found != null){
 					debug("Removing existing video in cache.");
 					_removeVideo(found);
+					fireChange(VideoChangeTypeEnum.REMOVED, found, found.getItemState());
 				}
 				
 				return;
 			}
 		}
 		
-		_replaceVideo(video, found);
+		_replaceVideo(video, found, xml);
 	}
 	
-	private void _replaceVideo(Video video, Video cached) throws AccountCacheException {
+	private void _replaceVideo(Video video, Video cached, String xml) throws AccountCacheException {
 		if(video == null){
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_FIELDS, "Can't replace with null videos.");
 		}
 		
 		if(cached == null){
 			debug("Couldn't find video already in cache, adding.");
-			_addVideo(video);
+			_addVideo(video, xml);
+			fireChange(VideoChangeTypeEnum.ADDED, video, null);
 			return;
 		}
 		
@@ -506,16 +1138,31 @@ public class AccountCache {
 			_removeVideo(cached);
 			
 			debug("Adding new video (" + videosById.keySet().size() + ").");
-			_addVideo(video);
+			_addVideo(video, xml);
 			
 			debug("Final array size (" + videosById.keySet().size() + ").");
+			
+			ItemStateEnum cachedState = cached.getItemState();
+			ItemStateEnum state       = video.getItemState();
+			if(! video.getId().equals(cached.getId())){
+				// Found through its reference id - as far as consumers can tell, the
+				// old video went away and a new one took its reference id
+				fireChange(VideoChangeTypeEnum.REMOVED, cached, cachedState);
+				fireChange(VideoChangeTypeEnum.ADDED, video, null);
+			}
+			else if((cachedState == null) ? (state != null) : (! cachedState.equals(state))){
+				fireChange(VideoChangeTypeEnum.STATE_CHANGED, video, cachedState);
+			}
+			else{
+				fireChange(VideoChangeTypeEnum.UPDATED, video, cachedState);
+			}
 		}
 		else{
 			debug("Video already in cache is newer (" + lastModifiedString + " vs " + cachedLastModifiedString + ").");
 		}
 	}
 	
-	private void _addVideo(Video video) throws AccountCacheException {
+	private void _addVideo(Video video, String xml) throws AccountCacheException {
 		if(video == null){
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_FIELDS, "Attempted to add null Video, can't add to cache.");
 		}
@@ -538,7 +1185,9 @@ public class AccountCache {
 			videosByReferenceId.put(refId, videoId);
 		}
 		videoLastModifiedDates.put(videoId, date);
-		SerializeVideo(video);
+		writeVideoXml(videoId, xml);
+		putFingerprint(videoId, fingerprint(xml));
+		syncWritten++;
 	}
 	
 	private void _removeVideo(Video video) throws AccountCacheException {
@@ -566,9 +1215,14 @@ public class AccountCache {
 		if(videoLastModifiedDates.containsKey(videoId)){
 			videoLastModifiedDates.remove(videoId);
 		}
+		removeFingerprint(videoId);
 		
-		File metadataFile = idToMetadataFile(videoId);
-		metadataFile.delete();
+		try {
+			storage.deleteRecord(videoId);
+		}
+		catch(IOException ioe){
+			info("Couldn't remove metadata for video '" + videoId + "' (" + ioe + ").");
+		}
 	}
 	
 	public void SerializeVideo(Video video) throws AccountCacheException {
@@ -577,67 +1231,167 @@ public class AccountCache {
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_FIELDS, "Video has no Video Id, can't add to cache.");
 		}
 		
+		String xml = videoToXml(video);
+		writeVideoXml(videoId, xml);
+		putFingerprint(videoId, fingerprint(xml));
+	}
+	
+	private String videoToXml(Video video) throws AccountCacheException {
 		try {
-			File metadataFile = idToMetadataFile(videoId);
-			
 			Videos videos = new Videos();
 			videos.add(video);
 			
-			File metadataDir = metadataFile.getParentFile();
-			if(! metadataDir.exists()){
-				info("Creating metadata directory '" + metadataDir.getAbsolutePath() + "'.");
-				FileUtils.forceMkdir(metadataDir);
-			}
-			
 			Document doc = videos.toXml();
 			
 			if(stripInvalidCharacters){
 				XalanUtils.stripNonValidXMLCharacters(doc);
 			}
-			String   xmlString = XalanUtils.prettyPrintWithTrAX(doc);
-			FileUtils.writeStringToFile(metadataFile, xmlString, "UTF-8");
+			return XalanUtils.prettyPrintWithTrAX(doc);
 		}
 		catch (Exception e) {
 			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Couldn't serialize video, exception caught: '" + e + "'.");
 		}
 	}
 	
-	public Video getVideoById(Long id){
-		Video video = getVideoByIdUnfiltered(id);
-		if(video == null){
-			return null;
+	private void writeVideoXml(Long videoId, String xmlString) throws AccountCacheException {
+		try {
+			byte[] record = compressMetadata ? getMetadataCodec().encode(xmlString) : xmlString.getBytes("UTF-8");
+			storage.writeRecord(videoId, record);
 		}
-		
-		ItemStateEnum state = video.getItemState();
-		if(state == null){
-			return null;
+		catch (IOException ioe) {
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to write metadata for video '" + videoId + "'.");
 		}
-		
-		if(! ItemStateEnum.ACTIVE.equals(state)){
+		dropHotVideo(videoId);
+	}
+	
+	/**
+	 * <p>
+	 *    Returns the stored metadata XML for a video, decompressed if it was
+	 *    stored compressed, or null if there isn't any.
+	 * </p>
+	 */
+	String readVideoXml(Long videoId) throws IOException {
+		if(videoId == null){
 			return null;
 		}
-		
-		return video;
+		byte[] record = storage.readRecord(videoId);
+		return (record == null) ? null : getMetadataCodec().decode(record);
 	}
 	
-	public Video getVideoByIdUnfiltered(Long id){
-		Video video = getVideoMetadata(id);
-		
-		return video;
+	static void writeAtomically(File file, String content) throws AccountCacheException {
+		try {
+			FileCacheStorage.writeAtomically(file, content.getBytes("UTF-8"));
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to write '" + file.getAbsolutePath() + "'.");
+		}
 	}
 	
-	public Video getVideoByReferenceId(String refId){
-		info("Looking for reference id '" + refId + "' (with filters).");
-		
-		Video video = getVideoByReferenceIdUnfiltered(refId);
-		if(video == null){
-			info("Video '" + refId + "' not found.");
-			return null;
+	static Long fingerprint(String content){
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325l;
+		for(int i=0; i<content.length(); i++){
+			hash ^= content.charAt(i);
+			hash *= 0x100000001b3l;
+		}
+		return hash;
+	}
+	
+	// ---------------- Raw metadata ---------------------------
+	public ByteBuffer getVideoMetadataBuffer(Long videoId) throws AccountCacheException {
+		byte[] hotXml = getHotVideoXml(videoId);
+		if(hotXml != null){
+			return ByteBuffer.wrap(hotXml).asReadOnlyBuffer();
 		}
 		
-		ItemStateEnum state = video.getItemState();
-		if(state == null){
-			info("Video '" + refId + "' found, but couldn't determine item state.");
+		if(videoId == null){
+			return null;
+		}
+		
+		try {
+			ByteBuffer buffer = storage.mapRecord(videoId);
+			if((buffer != null) && MetadataCodec.isCompressed(buffer)){
+				return ByteBuffer.wrap(getMetadataCodec().decode(buffer).getBytes("UTF-8")).asReadOnlyBuffer();
+			}
+			return buffer;
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to map metadata for video '" + videoId + "'.");
+		}
+	}
+	
+	public Long transferVideoMetadata(Long videoId, WritableByteChannel target) throws AccountCacheException {
+		return transferVideoMetadata(videoId, target, null);
+	}
+	
+	/**
+	 * @param listener Told the length before anything is written, or null
+	 * @return Number of bytes written, or -1 if the video's metadata isn't stored
+	 */
+	public Long transferVideoMetadata(Long videoId, WritableByteChannel target, MetadataTransferListener listener) throws AccountCacheException {
+		if(videoId == null){
+			return -1l;
+		}
+		
+		try {
+			// Writes below loop until everything is out
+			FileCacheStorage.checkBlocking(target);
+			
+			byte[] hotXml = getHotVideoXml(videoId);
+			if(hotXml != null){
+				return FileCacheStorage.writeFully(ByteBuffer.wrap(hotXml), target, listener);
+			}
+			
+			// Plain records go straight from storage to the channel; the codec
+			// inflates compressed ones from the same read, so a rewrite in
+			// between can't get one sent as stored
+			return storage.transferRecord(videoId, target, getMetadataCodec(), listener);
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to transfer metadata for video '" + videoId + "'.");
+		}
+	}
+	
+	public Video getVideoById(Long id){
+		Video video = getVideoByIdUnfiltered(id);
+		if(video == null){
+			return null;
+		}
+		
+		ItemStateEnum state = video.getItemState();
+		if(state == null){
+			return null;
+		}
+		
+		if(! ItemStateEnum.ACTIVE.equals(state)){
+			return null;
+		}
+		
+		return video;
+	}
+	
+	public Video getVideoByIdUnfiltered(Long id){
+		Video video = getVideoMetadata(id);
+		
+		if((video == null) && (id != null) && readThrough){
+			video = readThroughVideo("id:" + id, id, null);
+		}
+		
+		return video;
+	}
+	
+	public Video getVideoByReferenceId(String refId){
+		info("Looking for reference id '" + refId + "' (with filters).");
+		
+		Video video = getVideoByReferenceIdUnfiltered(refId);
+		if(video == null){
+			info("Video '" + refId + "' not found.");
+			return null;
+		}
+		
+		ItemStateEnum state = video.getItemState();
+		if(state == null){
+			info("Video '" + refId + "' found, but couldn't determine item state.");
 			return null;
 		}
 		
@@ -659,25 +1413,975 @@ public class AccountCache {
 		
 		Long videoId = videosByReferenceId.get(refId);
 		if(videoId == null){
+			if(readThrough){
+				return readThroughVideo("ref:" + refId, null, refId);
+			}
 			return null;
 		}
 		
 		return getVideoByIdUnfiltered(videoId);
 	}
 	
-	private void info(String message){
+	// ---------------- Metadata compression ---------------------------
+	/**
+	 * <p>
+	 *    Stores metadata written from now on compressed.  If no dictionary
+	 *    has been trained for this cache yet, one is trained from the videos
+	 *    already cached.  Existing records are left as they are until
+	 *    rewritten - see {@link #recompressMetadata()}.
+	 * </p>
+	 */
+	public void enableMetadataCompression() throws AccountCacheException {
+		compressMetadata = true;
+		if(MetadataCodec.NO_DICTIONARY.equals(getMetadataCodec().getDictionaryId()) && (! videosById.isEmpty())){
+			trainMetadataDictionary(DICTIONARY_SAMPLE_SIZE);
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Stores metadata written from now on as plain XML.  Compressed
+	 *    records can still be read.
+	 * </p>
+	 */
+	public void disableMetadataCompression(){
+		compressMetadata = false;
+	}
+	
+	/**
+	 * <p>
+	 *    Trains a new compression dictionary from up to the given number of
+	 *    cached records, spread evenly over the cache.  Records compressed
+	 *    with earlier dictionaries stay readable.
+	 * </p>
+	 * 
+	 * @return Id of the new dictionary
+	 */
+	public Integer trainMetadataDictionary(Integer sampleSize) throws AccountCacheException {
+		List<Long>   videoIds = copyKeys(videosById);
+		List<String> samples  = new ArrayList<String>();
+		Integer      step     = Math.max(1, videoIds.size() / sampleSize);
+		
+		try {
+			for(int i=0; (i<videoIds.size()) && (samples.size() < sampleSize); i+=step){
+				String xml = readVideoXml(videoIds.get(i));
+				if(xml != null){
+					samples.add(xml);
+				}
+			}
+			
+			Integer dictionaryId = getMetadataCodec().train(samples);
+			info("Trained metadata dictionary " + dictionaryId + " from " + samples.size() + " videos.");
+			return dictionaryId;
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to train metadata dictionary.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Rewrites every stored record in the current format - compressed
+	 *    with the current dictionary, or plain if compression is off.
+	 * </p>
+	 * 
+	 * <p>
+	 *    The cache's lock is taken for one record at a time, so syncs and
+	 *    lookups carry on in between.
+	 * </p>
+	 */
+	public void recompressMetadata() throws AccountCacheException {
+		checkWritable("recompressMetadata()");
+		
+		Integer rewritten = 0;
+		for(Long videoId : copyKeys(videosById)){
+			if(recompressRecord(videoId)){
+				rewritten++;
+			}
+		}
+		info("Rewrote metadata for " + rewritten + " videos.");
+	}
+	
+	/**
+	 * @return False if the record was skipped
+	 */
+	private synchronized Boolean recompressRecord(Long videoId) throws AccountCacheException {
+		// Removed, or the cache went read-only, since the ids were copied
+		if(readOnly || (! videosById.containsKey(videoId))){
+			return false;
+		}
+		
+		String xml = null;
+		try {
+			xml = readVideoXml(videoId);
+		}
+		catch(IOException ioe){
+			info("Couldn't read metadata for video '" + videoId + "' (" + ioe + "), skipping.");
+			return false;
+		}
+		if(xml == null){
+			return false;
+		}
+		
+		// Not what the index says was written, so not ours to write back
+		Long fingerprint = getFingerprint(videoId);
+		if((fingerprint != null) && (! fingerprint.equals(fingerprint(xml)))){
+			debug("Metadata for video '" + videoId + "' doesn't match its fingerprint, skipping.");
+			return false;
+		}
+		
+		writeVideoXml(videoId, xml);
+		return true;
+	}
+	
+	public Boolean getCompressMetadata(){
+		return compressMetadata;
+	}
+	
+	private MetadataCodec getMetadataCodec(){
+		// Set up front and replaced with the storage, so every read doesn't
+		// have to take the cache's lock to get at it
+		return metadataCodec;
+	}
+	
+	// ---------------- Hot set ---------------------------
+	/**
+	 * <p>
+	 *    Starts counting lookups per video, and keeps up to the given number
+	 *    of the most looked up videos in memory, parsed and as stored XML.
+	 * </p>
+	 * 
+	 * <p>
+	 *    Counts are kept in a fixed size {@link AccessSketch}, picked up from
+	 *    the cache's storage (<code>&lt;cache file&gt;.access</code> for
+	 *    files) if an earlier run saved one.
+	 *    Nothing is loaded until {@link #warmHotSet()} is called - do that
+	 *    before taking traffic after a restart.  Every refresh interval the
+	 *    sketch is saved and the hot set re-warmed to follow current lookups.
+	 *    The sketch is only advisory, so it is saved even when the cache is
+	 *    read-only.
+	 * </p>
+	 * 
+	 * @param hotSetSize      Most videos to keep in memory
+	 * @param refreshInterval Millis between saving the sketch and refreshing the hot set, or null to only do it when asked
+	 */
+	public synchronized void enableAccessTracking(Integer hotSetSize, Long refreshInterval){
+		if(hotVideos != null){
+			return;
+		}
+		
+		HotVideoSet hot = new HotVideoSet(this, storage, hotSetSize, videosById.size());
+		hot.start(refreshInterval);
+		hotVideos = hot;
+	}
+	
+	/**
+	 * <p>
+	 *    Saves the access sketch, for the next run to warm up from, and
+	 *    empties the hot set.  A read-only cache leaves the saved sketch to
+	 *    the process writing the cache.
+	 * </p>
+	 */
+	public synchronized void disableAccessTracking() throws AccountCacheException {
+		HotVideoSet hot = hotVideos;
+		if(hot == null){
+			return;
+		}
+		
+		hotVideos = null;
+		hot.stop();
+		if(! readOnly){
+			hot.save();
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Loads the most looked up videos into memory, in parallel, and
+	 *    returns once they are all loaded.
+	 * </p>
+	 * 
+	 * @return Number of videos loaded, 0 if access tracking is off
+	 */
+	public Integer warmHotSet() throws AccountCacheException {
+		HotVideoSet hot = hotVideos;
+		if(hot == null){
+			return 0;
+		}
+		
+		Long    start  = System.currentTimeMillis();
+		Integer loaded = hot.warm();
+		info("Warmed hot set with " + loaded + " videos in " + (System.currentTimeMillis() - start) + " ms (" + hot.size() + " of " + hot.getCapacity() + " held).");
+		return loaded;
+	}
+	
+	public void saveAccessSketch() throws AccountCacheException {
+		checkWritable("saveAccessSketch()");
+		
+		HotVideoSet hot = hotVideos;
+		if(hot != null){
+			hot.save();
+		}
+	}
+	
+	public Boolean getAccessTracking(){
+		return hotVideos != null;
+	}
+	
+	public AccessSketch getAccessSketch(){
+		HotVideoSet hot = hotVideos;
+		return (hot == null) ? null : hot.getSketch();
+	}
+	
+	public Integer getHotVideoCount(){
+		HotVideoSet hot = hotVideos;
+		return (hot == null) ? 0 : hot.size();
+	}
+	
+	private byte[] getHotVideoXml(Long videoId){
+		HotVideoSet hot = hotVideos;
+		if((hot == null) || (videoId == null)){
+			return null;
+		}
+		hot.recordAccess(videoId);
+		return hot.getXml(videoId);
+	}
+	
+	private void dropHotVideo(Long videoId){
+		HotVideoSet hot = hotVideos;
+		if(hot != null){
+			hot.invalidate(videoId);
+		}
+	}
+	
+	private void retainHotVideos(){
+		HotVideoSet hot = hotVideos;
+		if(hot != null){
+			hot.retainCurrent();
+		}
+	}
+	
+	// ---------------- Integrity checks ---------------------------
+	/**
+	 * <p>
+	 *    Starts checking the index against the metadata store every interval
+	 *    in the background (see {@link #checkIntegrity()}), reading at most
+	 *    the given number of records a second so lookups and syncs keep
+	 *    most of the disk.
+	 * </p>
+	 * 
+	 * @param interval            Millis between the end of one check and the start of the next
+	 * @param maxRecordsPerSecond Most records to read a second, or null for no limit
+	 */
+	public synchronized void enableIntegrityChecks(Long interval, Integer maxRecordsPerSecond){
+		if(integrityChecker != null){
+			return;
+		}
+		
+		IntegrityChecker checker = new IntegrityChecker(this, INTEGRITY_THREADS, maxRecordsPerSecond);
+		checker.start(interval);
+		integrityChecker = checker;
+	}
+	
+	/**
+	 * <p>
+	 *    Stops the background checks, interrupting one in progress.
+	 * </p>
+	 */
+	public synchronized void disableIntegrityChecks(){
+		IntegrityChecker checker = integrityChecker;
+		if(checker == null){
+			return;
+		}
+		
+		integrityChecker = null;
+		checker.stop();
+	}
+	
+	/**
+	 * <p>
+	 *    Checks the index against the metadata store, in parallel, and
+	 *    repairs what it can:
+	 * </p>
+	 * <ul>
+	 *    <li>stored records with no index entry (left by failed deletes, or a crash before {@link #Serialize()}) are deleted</li>
+	 *    <li>index entries whose record is missing, unreadable or doesn't match its fingerprint are queued, and fetched again by the next sync that reaches the watermark</li>
+	 *    <li>reference ids and modified dates for videos no longer in the index are removed</li>
+	 *    <li>missing modified dates are read back from the records</li>
+	 *    <li>with file storage, empty metadata directories and stale temp files are removed</li>
+	 * </ul>
+	 * 
+	 * <p>
+	 *    Lookups and syncs carry on while it runs; anything that looks
+	 *    wrong is checked again under the cache's lock before it is touched.
+	 *    A read-only cache is only checked, not repaired.  Uses the rate
+	 *    given to {@link #enableIntegrityChecks(Long, Integer)}, or no limit
+	 *    if background checks are off.
+	 * </p>
+	 */
+	public IntegrityReport checkIntegrity() throws AccountCacheException {
+		IntegrityChecker checker = integrityChecker;
+		if(checker == null){
+			checker = new IntegrityChecker(this, INTEGRITY_THREADS, null);
+		}
+		return checker.check();
+	}
+	
+	/**
+	 * @return What the last integrity check found, or null if none has run
+	 */
+	public IntegrityReport getIntegrityReport(){
+		return integrityReport;
+	}
+	
+	void setIntegrityReport(IntegrityReport integrityReport){
+		this.integrityReport = integrityReport;
+	}
+	
+	/**
+	 * <p>
+	 *    Number of videos waiting for a sync to fetch them again.
+	 * </p>
+	 */
+	public Integer getRefetchQueueSize(){
+		return refetchQueue.size();
+	}
+	
+	synchronized List<Long> snapshotVideoIds(){
+		return new ArrayList<Long>(videosById.keySet());
+	}
+	
+	synchronized Map<String,Long> snapshotReferenceIds(){
+		return new HashMap<String, Long>(videosByReferenceId);
+	}
+	
+	synchronized List<Long> snapshotDatedVideoIds(){
+		return new ArrayList<Long>(videoLastModifiedDates.keySet());
+	}
+	
+	synchronized Boolean isOrphanRecord(Long videoId){
+		if(videosById.containsKey(videoId)){
+			return false;
+		}
+		try {
+			return storage.readRecord(videoId) != null;
+		}
+		catch(IOException ioe){
+			return true;
+		}
+	}
+	
+	synchronized Boolean removeOrphanRecord(Long videoId){
+		if(readOnly || videosById.containsKey(videoId)){
+			return false;
+		}
+		try {
+			if(storage.readRecord(videoId) == null){
+				return false;
+			}
+			storage.deleteRecord(videoId);
+		}
+		catch(IOException ioe){
+			info("Couldn't remove orphaned metadata for video '" + videoId + "' (" + ioe + ").");
+			return false;
+		}
+		dropHotVideo(videoId);
+		return true;
+	}
+	
+	/**
+	 * <p>
+	 *    Checks again, with syncs held off, whether an indexed video's record
+	 *    is missing, unreadable or doesn't match its fingerprint.
+	 * </p>
+	 */
+	synchronized Boolean isRecordBroken(Long videoId){
+		if(! videosById.containsKey(videoId)){
+			return false;
+		}
+		try {
+			String xml = readVideoXml(videoId);
+			if(xml == null){
+				return true;
+			}
+			Long fingerprint = getFingerprint(videoId);
+			if(fingerprint != null){
+				return ! fingerprint.equals(fingerprint(xml));
+			}
+			Video video = parseVideo(xml);
+			return (video == null) || (! videoId.equals(video.getId()));
+		}
+		catch(Exception e){
+			return true;
+		}
+	}
+	
+	void queueRefetch(Long videoId){
+		refetchQueue.add(videoId);
+	}
+	
+	synchronized Boolean repairLastModified(Long videoId, Date lastModified){
+		if(readOnly || (! videosById.containsKey(videoId)) || (videoLastModifiedDates.get(videoId) != null)){
+			return false;
+		}
+		videoLastModifiedDates.put(videoId, lastModified);
+		indexModifications++;
+		return true;
+	}
+	
+	synchronized Boolean removeDanglingReferenceId(String refId, Long videoId){
+		if(readOnly || videosById.containsKey(videoId) || (! videoId.equals(videosByReferenceId.get(refId)))){
+			return false;
+		}
+		videosByReferenceId.remove(refId);
+		return true;
+	}
+	
+	synchronized Boolean removeDanglingDate(Long videoId){
+		if(readOnly || videosById.containsKey(videoId) || (! videoLastModifiedDates.containsKey(videoId))){
+			return false;
+		}
+		videoLastModifiedDates.remove(videoId);
+		indexModifications++;
+		return true;
+	}
+	
+	/**
+	 * <p>
+	 *    Fetches again the videos an integrity check queued, leaving the
+	 *    rest queued if the token is stopped or the Media API fails.
+	 * </p>
+	 */
+	private void refetchQueued(EnumSet<VideoFieldEnum> videoFields, Set<String> customFields, SyncToken token) throws AccountCacheException {
+		if(refetchQueue.isEmpty()){
+			return;
+		}
+		
+		info("Re-fetching " + refetchQueue.size() + " videos with missing or damaged metadata.");
+		for(Long videoId : new ArrayList<Long>(refetchQueue)){
+			if((token != null) && token.isStopped()){
+				return;
+			}
+			
+			Video video = null;
+			try {
+				video = readApi.FindVideoById(account.getReadToken(), videoId, videoFields, customFields);
+			}
+			catch(BrightcoveException be){
+				info("Couldn't re-fetch video '" + videoId + "' (" + be + ").  Leaving it for the next sync.");
+				return;
+			}
+			repairVideo(videoId, video);
+			refetchQueue.remove(videoId);
+		}
+	}
+	
+	private synchronized void repairVideo(Long videoId, Video video) throws AccountCacheException {
+		if(! videosById.containsKey(videoId)){
+			// Removed by the sync since it was queued
+			return;
+		}
+		// Without its fingerprint the stored record can't pass for unchanged
+		removeFingerprint(videoId);
+		
+		Boolean gone = (video == null) || (video.getId() == null) || (ItemStateEnum.DELETED.equals(video.getItemState()) && (! includeDeletedVideos));
+		if(! gone){
+			addVideo(video);
+			return;
+		}
+		
+		debug("    Video '" + videoId + "' is no longer in the Media API, removing it from the cache.");
+		Video cached = readVideoMetadata(videoId);
+		if((cached != null) && videoId.equals(cached.getId())){
+			_removeVideo(cached);
+			fireChange(VideoChangeTypeEnum.REMOVED, cached, cached.getItemState());
+			return;
+		}
+		
+		// Nothing readable to go by - dangling reference ids go with the next check
+		videosById.remove(videoId);
+		videoLastModifiedDates.remove(videoId);
+		try {
+			storage.deleteRecord(videoId);
+		}
+		catch(IOException ioe){
+			info("Couldn't remove metadata for video '" + videoId + "' (" + ioe + ").");
+		}
+	}
+	
+	// ---------------- Read-through ---------------------------
+	private Video readThroughVideo(final String key, final Long videoId, final String refId){
+		Long missExpires = readThroughMisses.get(key);
+		if(missExpires != null){
+			if(missExpires > System.currentTimeMillis()){
+				debug("Read-through for '" + key + "' skipped, recently missed.");
+				return null;
+			}
+			readThroughMisses.remove(key, missExpires);
+		}
+		
+		FutureTask<Video> request = new FutureTask<Video>(new Callable<Video>(){
+			public Video call() throws Exception {
+				return fetchVideo(key, videoId, refId);
+			}
+		});
+		
+		FutureTask<Video> inFlight = readThroughRequests.putIfAbsent(key, request);
+		if(inFlight == null){
+			inFlight = request;
+			try{
+				request.run();
+			}
+			finally{
+				readThroughRequests.remove(key, request);
+			}
+		}
+		else{
+			debug("Read-through for '" + key + "' already in flight, waiting on it.");
+		}
+		
+		try{
+			return inFlight.get();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException ee){
+			info("Read-through for '" + key + "' failed: " + ee.getCause());
+			return null;
+		}
+	}
+	
+	private Video fetchVideo(String key, Long videoId, String refId) throws BrightcoveException, AccountCacheException {
+		if((readApi == null) || (account == null)){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Must set ReadApi and BrightcoveAccount via appropriate constructor before using read-through.");
+		}
+		
+		debug("Read-through fetching '" + key + "' from Media API.");
+		
+		Video video = null;
+		if(videoId != null){
+			video = readApi.FindVideoById(account.getReadToken(), videoId, syncVideoFields, syncCustomFields);
+		}
+		else{
+			video = readApi.FindVideoByReferenceId(account.getReadToken(), refId, syncVideoFields, syncCustomFields);
+		}
+		
+		if((video == null) || (video.getId() == null)){
+			debug("    Video '" + key + "' not found in Media API.");
+			rememberMiss(key);
+			return null;
+		}
+		
+		if(readOnly){
+			// Only the process holding the write lock may change the cache
+			return video;
+		}
+		
+		addVideo(video);
+		
+		// Without the index snapshot the metadata written for it would be an
+		// orphan after a restart
+		scheduleReadThroughSave();
+		
+		// Newest wins, so hand back whatever actually ended up in the cache,
+		// without counting the caller's lookup a second time
+		Video cached = readVideoMetadata(video.getId());
+		if(cached == null){
+			rememberMiss(key);
+		}
+		return cached;
+	}
+	
+	/**
+	 * <p>
+	 *    Saves the index a while after a read-through add rather than on
+	 *    every one, so a burst of misses costs one snapshot instead of one
+	 *    each.  A sync or {@link #Serialize()} in the meantime saves them
+	 *    anyway.  Adds still waiting when the process exits leave orphan
+	 *    records, which the integrity checks remove.
+	 * </p>
+	 */
+	private synchronized void scheduleReadThroughSave(){
+		if(readThroughSavePending){
+			return;
+		}
+		if(readThroughSaver == null){
+			readThroughSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable runnable){
+					Thread thread = new Thread(runnable, "account-cache-read-through-save");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		readThroughSavePending = true;
+		readThroughSaver.schedule(new Runnable(){
+			public void run(){
+				saveReadThrough();
+			}
+		}, readThroughSaveDelay, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void clearReadThroughSave(){
+		readThroughSavePending = false;
+	}
+	
+	private void saveReadThrough(){
+		synchronized(this){
+			if((! readThroughSavePending) || readOnly){
+				// Saved since, or no longer ours to save
+				readThroughSavePending = false;
+				return;
+			}
+		}
+		
+		try {
+			Serialize();
+		}
+		catch(AccountCacheException ace){
+			info("Couldn't save read-through videos (" + ace + ").");
+		}
+	}
+	
+	private void rememberMiss(String key){
+		Long now = System.currentTimeMillis();
+		
+		if(readThroughMisses.size() >= MAX_READ_THROUGH_MISSES){
+			for(Map.Entry<String,Long> miss : readThroughMisses.entrySet()){
+				if(miss.getValue() <= now){
+					readThroughMisses.remove(miss.getKey(), miss.getValue());
+				}
+			}
+		}
+		
+		readThroughMisses.put(key, now + readThroughMissTtl);
+	}
+	
+	public void clearReadThroughMisses(){
+		readThroughMisses.clear();
+	}
+	
+	// ---------------- Playlists ---------------------------
+	public void UpdatePlaylists() throws AccountCacheException {
+		UpdatePlaylists(null);
+	}
+	
+	public void UpdatePlaylists(EnumSet<PlaylistFieldEnum> playlistFields) throws AccountCacheException {
+		if(playlistFields == null){
+			playlistFields = defaultPlaylistFields;
+		}
+		
+		checkWritable("UpdatePlaylists()");
+		
+		playlistCache.update(playlistFields);
+		playlistCache.serialize(stripInvalidCharacters);
+	}
+	
+	public Playlist getPlaylistById(Long playlistId){
+		return playlistCache.getPlaylistById(playlistId);
+	}
+	
+	public Playlist getPlaylistByReferenceId(String refId){
+		return playlistCache.getPlaylistByReferenceId(refId);
+	}
+	
+	public List<Video> getPlaylistVideos(Long playlistId){
+		return playlistCache.getPlaylistVideos(playlistId);
+	}
+	
+	public Set<Long> getPlaylistIds(){
+		return playlistCache.getPlaylistIds();
+	}
+	
+	public Map<String,Long> getPlaylistsByReferenceId(){
+		return playlistCache.getPlaylistsByReferenceId();
+	}
+	
+	// ---------------- Change events ---------------------------
+	public void addChangeListener(VideoChangeListener listener){
+		changeListeners.add(listener);
+	}
+	
+	public void removeChangeListener(VideoChangeListener listener){
+		changeListeners.remove(listener);
+	}
+	
+	public void addChangeQueue(BlockingQueue<VideoChangeEvent> queue){
+		changeQueues.add(queue);
+	}
+	
+	public void removeChangeQueue(BlockingQueue<VideoChangeEvent> queue){
+		changeQueues.remove(queue);
+	}
+	
+	public Long getDroppedChangeEvents(){
+		return droppedChangeEvents;
+	}
+	
+	public Long getLastChangeSequence(){
+		return changeSequence;
+	}
+	
+	public synchronized void enableChangeLog() throws AccountCacheException {
+		if(changeLog != null){
+			return;
+		}
+		
+		try {
+			changeLog = new ChangeLog(storage.openJournal("changes"));
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to open change log.");
+		}
+		
+		if(changeLog.getLastSequence() > changeSequence){
+			changeSequence = changeLog.getLastSequence();
+		}
+		info("Change log opened at sequence " + changeSequence + ".");
+	}
+	
+	/**
+	 * <p>
+	 *    Opens the change log's journal again, in case another process
+	 *    replaced it while this one was only reading it.  Events in it this
+	 *    cache hasn't seen yet are delivered by the next
+	 *    {@link #refreshChangeLog()}.
+	 * </p>
+	 */
+	synchronized void reopenChangeLog() throws AccountCacheException {
+		if(changeLog == null){
+			return;
+		}
+		
+		try {
+			changeLog.reopen();
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to reopen change log.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Picks up changes another process has appended to the change log
+	 *    and hands them to this cache's listeners and queues.
+	 * </p>
+	 */
+	synchronized void refreshChangeLog() throws AccountCacheException {
+		if(changeLog == null){
+			return;
+		}
+		
+		try {
+			changeLog.refresh();
+			while(changeSequence < changeLog.getLastSequence()){
+				List<VideoChangeEvent> events = changeLog.read(changeSequence + 1, 1000);
+				if(events.isEmpty()){
+					// The log was truncated past what we'd seen
+					changeSequence = changeLog.getLastSequence();
+					break;
+				}
+				for(VideoChangeEvent event : events){
+					changeSequence = event.getSequence();
+					deliverChange(event);
+				}
+			}
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to refresh change log.");
+		}
+	}
+	
+	public synchronized void disableChangeLog() throws AccountCacheException {
+		if(changeLog == null){
+			return;
+		}
+		
+		try {
+			changeLog.close();
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to close change log.");
+		}
+		finally {
+			changeLog = null;
+		}
+	}
+	
+	public List<VideoChangeEvent> readChanges(Long fromSequence, Integer maxEvents) throws AccountCacheException {
+		if(changeLog == null){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Change log must be enabled via enableChangeLog() before reading changes.");
+		}
+		
+		try {
+			return changeLog.read(fromSequence, maxEvents);
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ioe + " trying to read change log from sequence " + fromSequence + ".");
+		}
+	}
+	
+	public void truncateChangeLog(Long beforeSequence) throws AccountCacheException {
+		if(changeLog == null){
+			return;
+		}
+		checkWritable("truncateChangeLog()");
+		
+		try {
+			changeLog.truncate(beforeSequence);
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to truncate change log.");
+		}
+	}
+	
+	private void fireChange(VideoChangeTypeEnum type, Video video, ItemStateEnum previousState) throws AccountCacheException {
+		changeSequence++;
+		VideoChangeEvent event = new VideoChangeEvent(changeSequence, type, video.getId(), video.getReferenceId(), video.getItemState(), previousState, video.getLastModifiedDate());
+		debug("    Change " + event + ".");
+		
+		if(changeLog != null){
+			try {
+				changeLog.append(event);
+			}
+			catch(IOException ioe){
+				throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to append to change log.");
+			}
+		}
+		
+		deliverChange(event);
+	}
+	
+	private void deliverChange(VideoChangeEvent event){
+		for(BlockingQueue<VideoChangeEvent> queue : changeQueues){
+			if(! queue.offer(event)){
+				droppedChangeEvents++;
+			}
+		}
+		
+		for(VideoChangeListener listener : changeListeners){
+			try {
+				listener.videoChanged(event);
+			}
+			catch(RuntimeException re){
+				info("Change listener '" + listener + "' threw " + re + ", ignoring.");
+			}
+		}
+	}
+	
+	// ---------------- Catalog iteration ---------------------------
+	public CatalogIterator getCatalogIterator(){
+		return getCatalogIterator(null, null, CATALOG_THREADS, CATALOG_BATCH_SIZE);
+	}
+	
+	public CatalogIterator getCatalogIterator(Set<ItemStateEnum> states, Date modifiedSince){
+		return getCatalogIterator(states, modifiedSince, CATALOG_THREADS, CATALOG_BATCH_SIZE);
+	}
+	
+	public CatalogIterator getCatalogIterator(Set<ItemStateEnum> states, Date modifiedSince, Integer threads, Integer batchSize){
+		return getCatalogIterators(1, states, modifiedSince, threads, batchSize).get(0);
+	}
+	
+	public List<CatalogIterator> getCatalogIterators(Integer partitions, Set<ItemStateEnum> states, Date modifiedSince, Integer threads, Integer batchSize){
+		List<CatalogIterator> iterators = new ArrayList<CatalogIterator>();
+		for(Iterator<Long> videoIds : storage.listRecords(partitions)){
+			iterators.add(new CatalogIterator(this, videoIds, states, modifiedSince, threads, batchSize));
+		}
+		return iterators;
+	}
+	
+	// ---------------- Index queries ---------------------------
+	public Integer countVideos(){
+		return videosById.size();
+	}
+	
+	public Integer countVideos(ItemStateEnum state){
+		if(state == null){
+			return countVideos();
+		}
+		if(videosById instanceof StateCountingMap){
+			return ((StateCountingMap)videosById).getCount(state);
+		}
+		return offHeapIndex.getStateCount(state);
+	}
+	
+	public Map<ItemStateEnum,Integer> countVideosByState(){
+		Map<ItemStateEnum,Integer> counts = new EnumMap<ItemStateEnum, Integer>(ItemStateEnum.class);
+		for(ItemStateEnum state : ItemStateEnum.values()){
+			counts.put(state, countVideos(state));
+		}
+		return counts;
+	}
+	
+	public List<Long> listVideoIds(ItemStateEnum state, VideoIndexSortEnum sortBy, SortOrderTypeEnum sortOrder, Integer pageSize, Integer pageNumber) throws AccountCacheException {
+		if((sortBy == null) || (pageSize == null) || (pageSize < 1) || (pageNumber == null) || (pageNumber < 0)){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Listing videos requires a sort field, a positive page size and a page number of 0 or more.");
+		}
+		
+		return indexQuery.listVideoIds(state, sortBy, sortOrder, pageSize, pageNumber, indexVersion());
+	}
+	
+	public SortedMap<Date,Integer> getModifiedDateHistogram(Date from, Date to, Long bucketMillis, ItemStateEnum state) throws AccountCacheException {
+		if((from == null) || (to == null) || from.after(to) || (bucketMillis == null) || (bucketMillis < 1)){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Histograms require a date range and a positive bucket size.");
+		}
+		
+		// A negative span means the range overflowed a long
+		long span    = to.getTime() - from.getTime();
+		long buckets = (span / bucketMillis) + (((span % bucketMillis) == 0) ? 0 : 1);
+		if((span < 0) || (buckets > MAX_HISTOGRAM_BUCKETS)){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Histograms are limited to " + MAX_HISTOGRAM_BUCKETS + " buckets; use a larger bucket size or a shorter range.");
+		}
+		
+		return indexQuery.getModifiedDateHistogram(from, to, bucketMillis, state, indexVersion());
+	}
+	
+	private Long indexVersion(){
+		Long version = indexModifications;
+		if(videosById instanceof StateCountingMap){
+			version += ((StateCountingMap)videosById).getModificationCount();
+		}
+		if(offHeapIndex != null){
+			version += offHeapIndex.getModificationCount();
+		}
+		return version;
+	}
+	
+	/**
+	 * <p>
+	 *    Copies an index's keys with writers held off.  Read-through makes
+	 *    lookup threads writers too, so neither the heap indexes nor the
+	 *    off-heap views can be walked directly.
+	 * </p>
+	 */
+	static <K> List<K> copyKeys(Map<K,?> index){
+		synchronized(OffHeapVideoIndex.lockFor(index)){
+			return new ArrayList<K>(index.keySet());
+		}
+	}
+	
+	private void checkWritable(String operation) throws AccountCacheException {
+		if(readOnly){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_READ_ONLY, "Can't use " + operation + " on a read-only cache.");
+		}
+	}
+	
+	void info(String message){
 		if((logger != null) && (logLevel >= LOG_INFORMATIONAL)){
 			logger.info(message);
 		}
 	}
 	
-	private void debug(String message){
+	void debug(String message){
 		if((logger != null) && (logLevel >= LOG_DEBUG)){
 			logger.info(message);
 		}
 	}
 	
-	private void minutia(String message){
+	void minutia(String message){
 		if((logger != null) && (logLevel >= LOG_ALL)){
 			logger.info(message);
 		}
@@ -698,6 +2402,7 @@ public class AccountCache {
 	
 	public void setReadApi(ReadApi readApi){
 		this.readApi = readApi;
+		readApi.setBrightcoveExceptionHandler(exceptionHandler);
 	}
 	
 	public Logger getLogger(){
@@ -724,12 +2429,27 @@ public class AccountCache {
 		this.includeDeletedVideos = includeDeletedVideos;
 	}
 	
+	/**
+	 * @return The file the cache is named after, or null if it isn't kept in files
+	 */
 	public File getCacheFile(){
-		return cacheFile;
+		if(storage instanceof FileCacheStorage){
+			return ((FileCacheStorage)storage).getCacheFile();
+		}
+		return null;
 	}
 	
 	public void setCacheFile(File cacheFile){
-		this.cacheFile = cacheFile;
+		setStorage(new FileCacheStorage(cacheFile));
+	}
+	
+	public CacheStorage getStorage(){
+		return storage;
+	}
+	
+	public synchronized void setStorage(CacheStorage storage){
+		this.storage  = storage;
+		metadataCodec = new MetadataCodec(storage);
 	}
 	
 	public Boolean getStripInvalidCharacters(){
@@ -740,12 +2460,89 @@ public class AccountCache {
 		this.stripInvalidCharacters = stripInvalidCharacters;
 	}
 	
+	public Boolean getReadThrough(){
+		return readThrough;
+	}
+	
+	public void setReadThrough(Boolean readThrough){
+		this.readThrough = readThrough;
+	}
+	
+	public Long getReadThroughMissTtl(){
+		return readThroughMissTtl;
+	}
+	
+	public void setReadThroughMissTtl(Long readThroughMissTtl){
+		this.readThroughMissTtl = readThroughMissTtl;
+	}
+	
+	public Long getReadThroughSaveDelay(){
+		return readThroughSaveDelay;
+	}
+	
+	/**
+	 * @param readThroughSaveDelay Milliseconds from a read-through add to saving the index
+	 */
+	public void setReadThroughSaveDelay(Long readThroughSaveDelay){
+		this.readThroughSaveDelay = readThroughSaveDelay;
+	}
+	
+	public Date getSyncWatermark(){
+		return syncWatermark;
+	}
+	
+	/**
+	 * <p>
+	 *    Number of videos written to disk since the last sync started.
+	 * </p>
+	 */
+	public Integer getLastSyncWritten(){
+		return syncWritten;
+	}
+	
+	/**
+	 * <p>
+	 *    Number of videos skipped since the last sync started because they
+	 *    were already cached with identical content.
+	 * </p>
+	 */
+	public Integer getLastSyncSkipped(){
+		return syncSkipped;
+	}
+	
+	public Boolean getReadOnly(){
+		return readOnly;
+	}
+	
+	/**
+	 * <p>
+	 *    A read-only cache serves lookups from whatever is on disk but
+	 *    refuses to sync or write, so several processes can share one cache
+	 *    directory with a single writer.  See {@link SharedCacheCoordinator}.
+	 * </p>
+	 */
+	public void setReadOnly(Boolean readOnly){
+		this.readOnly = readOnly;
+	}
+	
+	public Boolean getCachePlaylists(){
+		return cachePlaylists;
+	}
+	
+	public void setCachePlaylists(Boolean cachePlaylists){
+		this.cachePlaylists = cachePlaylists;
+	}
+	
 	public Map<Long,ItemStateEnum> getVideosById(){
 		return videosById;
 	}
 	
 	public void setVideosById(Map<Long,ItemStateEnum> videosById){
+		if((! (videosById instanceof StateCountingMap)) && ((offHeapIndex == null) || (videosById != offHeapIndex.getStateMap()))){
+			videosById = new StateCountingMap(videosById);
+		}
 		this.videosById = videosById;
+		indexModifications++;
 	}
 	
 	public Map<String,Long> getVideosByReferenceId(){
@@ -753,6 +2550,9 @@ public class AccountCache {
 	}
 	
 	public void setVideosByReferenceId(Map<String,Long> videosByReferenceId){
+		if((offHeapIndex == null) || (videosByReferenceId != offHeapIndex.getReferenceIdMap())){
+			videosByReferenceId = Collections.synchronizedMap(videosByReferenceId);
+		}
 		this.videosByReferenceId = videosByReferenceId;
 	}
 	
@@ -761,6 +2561,10 @@ public class AccountCache {
 	}
 	
 	public void setVideoLastModifiedDates(Map<Long,Date> videoLastModifiedDates){
+		if((offHeapIndex == null) || (videoLastModifiedDates != offHeapIndex.getLastModifiedMap())){
+			videoLastModifiedDates = Collections.synchronizedMap(videoLastModifiedDates);
+		}
 		this.videoLastModifiedDates = videoLastModifiedDates;
+		indexModifications++;
 	}
 }
@@ -0,0 +1,68 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ *    An append only byte log kept by a {@link CacheStorage}.  The journal
+ *    knows nothing about what is in it; {@link ChangeLog} keeps its own
+ *    offsets and decides what a complete entry is.
+ * </p>
+ * 
+ * <p>
+ *    Storage shared between processes may have the journal appended to, or
+ *    replaced, by another process - {@link #size()} always reports what is
+ *    stored now, {@link #isReplaced()} tells whether it is still the same
+ *    journal, and {@link #reopen()} picks up a replacement.
+ * </p>
+ */
+public interface CacheJournal {
+	public Long size() throws IOException;
+	
+	public void append(byte[] data) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Reads from the given offset to the current end of the journal.
+	 * </p>
+	 */
+	public InputStream read(Long offset) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Cuts the journal back to the given length, dropping a partial
+	 *    entry left behind by a crash.
+	 * </p>
+	 */
+	public void truncate(Long size) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Starts writing a replacement for the whole journal.  It takes the
+	 *    old content's place, in one step, when the stream is closed.
+	 * </p>
+	 */
+	public OutputStream replace() throws IOException;
+	
+	/**
+	 * <p>
+	 *    Whether what is stored now is a replacement for the journal this
+	 *    object has open, written by another process.  Storage that can't
+	 *    tell returns false.
+	 * </p>
+	 */
+	public Boolean isReplaced() throws IOException;
+	
+	public void reopen() throws IOException;
+	
+	/**
+	 * <p>
+	 *    Makes sure everything appended so far survives a crash.
+	 * </p>
+	 */
+	public void force() throws IOException;
+	
+	public void close() throws IOException;
+}
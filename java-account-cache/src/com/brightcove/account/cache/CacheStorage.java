@@ -0,0 +1,104 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>
+ *    Where an {@link AccountCache} keeps what it persists: the index
+ *    snapshot written by {@link AccountCache#Serialize()}, one metadata
+ *    record per video, small named blobs (playlists, sync progress,
+ *    compression dictionaries, the access sketch) and append only journals
+ *    (the change log).
+ * </p>
+ * 
+ * <p>
+ *    {@link FileCacheStorage} is the on-disk layout the cache has always
+ *    used; {@link MemoryCacheStorage} keeps everything on the heap, for
+ *    tests and short lived caches.  Records and blobs are opaque bytes -
+ *    compression and parsing stay in the cache - and every write must
+ *    replace the old content atomically, since lookups read records while
+ *    a sync is rewriting them.
+ * </p>
+ * 
+ * <p>
+ *    Blob names are relative paths using '/' as the separator, e.g.
+ *    <code>dictionaries/3.dict</code>.
+ * </p>
+ */
+public interface CacheStorage {
+	/**
+	 * @return The last snapshot written, or null if there isn't one
+	 */
+	public byte[] readIndexSnapshot() throws IOException;
+	
+	public void writeIndexSnapshot(byte[] snapshot) throws IOException;
+	
+	/**
+	 * @return The stored record, or null if there isn't one
+	 */
+	public byte[] readRecord(Long videoId) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Read-only view of a stored record, mapped rather than copied where
+	 *    the storage allows it.
+	 * </p>
+	 * 
+	 * @return The stored record, or null if there isn't one
+	 */
+	public ByteBuffer mapRecord(Long videoId) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Writes a stored record to the given channel, without copying it
+	 *    through the heap where the storage allows it.  Records the decoder
+	 *    recognises are decoded on the heap and sent decoded instead.  The
+	 *    check, the decoding and the transfer all read the record as it was
+	 *    when first opened, so a rewrite part way can't mix versions.  The
+	 *    channel must be in blocking mode.
+	 * </p>
+	 * 
+	 * @param decoder  Null to send every record as stored
+	 * @param listener Told the number of bytes about to be sent, before any are, or null
+	 * @return Number of bytes written, or -1 if there is no record
+	 */
+	public Long transferRecord(Long videoId, WritableByteChannel target, RecordDecoder decoder, MetadataTransferListener listener) throws IOException;
+	
+	public void writeRecord(Long videoId, byte[] record) throws IOException;
+	
+	public void deleteRecord(Long videoId) throws IOException;
+	
+	/**
+	 * <p>
+	 *    Lists the ids of every stored record, in whatever order is cheapest
+	 *    to read them back in, split into the given number of contiguous
+	 *    ranges.  The iterators are lazy and each is meant for one thread.
+	 * </p>
+	 */
+	public List<Iterator<Long>> listRecords(Integer partitions);
+	
+	/**
+	 * @return The blob, or null if there isn't one
+	 */
+	public byte[] readBlob(String name) throws IOException;
+	
+	public void writeBlob(String name, byte[] data) throws IOException;
+	
+	public void deleteBlob(String name) throws IOException;
+	
+	/**
+	 * @return Names of the blobs starting with the given prefix, in no particular order
+	 */
+	public List<String> listBlobs(String prefix);
+	
+	/**
+	 * <p>
+	 *    Opens the named journal, creating it if it doesn't exist yet.
+	 * </p>
+	 */
+	public CacheJournal openJournal(String name) throws IOException;
+}
@@ -0,0 +1,187 @@
+package com.brightcove.account.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.brightcove.commons.catalog.objects.Video;
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+
+/**
+ * <p>
+ *    Iterates over every video in an {@link AccountCache}, optionally
+ *    filtered by item state and last modified date.
+ * </p>
+ * 
+ * <p>
+ *    Videos are read in storage order - the order the cache's
+ *    {@link CacheStorage} lists its records in, for files a depth first
+ *    walk of the digit nested metadata directories - rather than in random
+ *    id order.  The state and date filters are checked against the
+ *    in-memory indexes before any metadata is read.  Ids are handed out in
+ *    batches to a small pool of background threads which read and parse
+ *    them ahead of the caller, with a bounded number of batches in flight,
+ *    so memory use depends on the batch size and thread count and not on
+ *    the size of the account.
+ * </p>
+ * 
+ * <p>
+ *    The background threads are released once the iterator is exhausted;
+ *    call {@link #close()} when abandoning an iterator early.  An iterator
+ *    is meant to be used from a single thread - use
+ *    {@link AccountCache#getCatalogIterators(Integer, Set, Date, Integer, Integer)}
+ *    to split a catalog across several.
+ * </p>
+ */
+public class CatalogIterator implements Iterator<Video>, Closeable {
+	private AccountCache       cache;
+	private Set<ItemStateEnum> states;
+	private Date               modifiedSince;
+	private Integer            batchSize;
+	private Integer            maxBatchesInFlight;
+	private ExecutorService    executor;
+	private Iterator<Long>     walker;
+	
+	private LinkedList<Future<List<Video>>> inFlight;
+	private Iterator<Video>                 currentBatch;
+	private Video                           nextVideo;
+	private Boolean                         closed;
+	
+	CatalogIterator(AccountCache cache, Iterator<Long> videoIds, Set<ItemStateEnum> states, Date modifiedSince, Integer threads, Integer batchSize){
+		this.cache         = cache;
+		this.states        = states;
+		this.modifiedSince = modifiedSince;
+		this.batchSize     = batchSize;
+		
+		maxBatchesInFlight = threads * 2;
+		walker             = videoIds;
+		inFlight           = new LinkedList<Future<List<Video>>>();
+		currentBatch       = Collections.<Video>emptyList().iterator();
+		closed             = false;
+		executor           = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-catalog-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public boolean hasNext(){
+		if(nextVideo != null){
+			return true;
+		}
+		
+		while(! closed){
+			if(currentBatch.hasNext()){
+				nextVideo = currentBatch.next();
+				return true;
+			}
+			
+			fill();
+			if(inFlight.isEmpty()){
+				close();
+				return false;
+			}
+			
+			try {
+				currentBatch = inFlight.removeFirst().get().iterator();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException("Interrupted while reading catalog.", ie);
+			}
+			catch(ExecutionException ee){
+				close();
+				throw new IllegalStateException("Caught " + ee.getCause() + " reading catalog.", ee.getCause());
+			}
+		}
+		return false;
+	}
+	
+	public Video next(){
+		if(! hasNext()){
+			throw new NoSuchElementException();
+		}
+		Video video = nextVideo;
+		nextVideo = null;
+		return video;
+	}
+	
+	public void remove(){
+		throw new UnsupportedOperationException("The catalog can't be changed through an iterator.");
+	}
+	
+	public void close(){
+		if(closed){
+			return;
+		}
+		closed = true;
+		
+		for(Future<List<Video>> batch : inFlight){
+			batch.cancel(true);
+		}
+		inFlight.clear();
+		executor.shutdownNow();
+	}
+	
+	private void fill(){
+		while((inFlight.size() < maxBatchesInFlight) && walker.hasNext()){
+			final List<Long> ids = new ArrayList<Long>(batchSize);
+			while((ids.size() < batchSize) && walker.hasNext()){
+				Long videoId = walker.next();
+				if(matches(videoId)){
+					ids.add(videoId);
+				}
+			}
+			
+			if(ids.isEmpty()){
+				continue;
+			}
+			
+			inFlight.add(executor.submit(new Callable<List<Video>>(){
+				public List<Video> call(){
+					List<Video> videos = new ArrayList<Video>(ids.size());
+					for(Long videoId : ids){
+						Video video = cache.readVideoMetadata(videoId);
+						// Removed since it was listed
+						if(video != null){
+							videos.add(video);
+						}
+					}
+					return videos;
+				}
+			}));
+		}
+	}
+	
+	private Boolean matches(Long videoId){
+		if(! cache.getVideosById().containsKey(videoId)){
+			// Orphaned record, not part of the index
+			return false;
+		}
+		if((states != null) && (! states.contains(cache.getVideosById().get(videoId)))){
+			return false;
+		}
+		if(modifiedSince != null){
+			Date lastModified = cache.getVideoLastModifiedDates().get(videoId);
+			if((lastModified == null) || lastModified.before(modifiedSince)){
+				return false;
+			}
+		}
+		return true;
+	}
+}
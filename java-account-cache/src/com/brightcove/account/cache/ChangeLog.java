@@ -0,0 +1,223 @@
+package com.brightcove.account.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ *    Append only, sequence numbered log of {@link VideoChangeEvent}s, one tab
+ *    separated line per event.
+ * </p>
+ * 
+ * <p>
+ *    The log is kept in a {@link CacheJournal} and scanned once when
+ *    opened, to find the last sequence number and to build a sparse
+ *    sequence to offset index, so tailing from a given sequence only reads
+ *    the part of the journal after it.  A partial line left behind by a
+ *    crash is cut off before the next append, rather than when the log is
+ *    opened, since with a shared cache directory it may be another
+ *    process's write still in progress.
+ * </p>
+ */
+class ChangeLog {
+	private static final Integer INDEX_INTERVAL = 1000;
+	private static final String  ENCODING       = "UTF-8";
+	
+	private CacheJournal       journal;
+	private Long               size;
+	private Long               lastSequence;
+	private TreeMap<Long,Long> offsets;
+	private Boolean            tailChecked;
+	
+	ChangeLog(CacheJournal journal) throws IOException {
+		this.journal = journal;
+		open();
+	}
+	
+	private void open() throws IOException {
+		size         = 0l;
+		lastSequence = 0l;
+		offsets      = new TreeMap<Long, Long>();
+		tailChecked  = false;
+		
+		scan();
+	}
+	
+	/**
+	 * <p>
+	 *    Reads any complete lines past the end of what has been indexed so
+	 *    far, stopping at the last newline.
+	 * </p>
+	 */
+	private void scan() throws IOException {
+		if(journal.size() <= size){
+			return;
+		}
+		
+		InputStream in = journal.read(size);
+		try {
+			InputStream           reader = new BufferedInputStream(in);
+			ByteArrayOutputStream line   = new ByteArrayOutputStream();
+			
+			int b = reader.read();
+			while(b != -1){
+				if(b != '\n'){
+					line.write(b);
+					b = reader.read();
+					continue;
+				}
+				
+				VideoChangeEvent event = null;
+				try {
+					event = VideoChangeEvent.fromLogLine(line.toString(ENCODING));
+				}
+				catch(RuntimeException re){
+					// Torn write, left for the next append to cut off
+					break;
+				}
+				
+				index(event.getSequence(), size);
+				size        += line.size() + 1;
+				lastSequence = event.getSequence();
+				line.reset();
+				b = reader.read();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Picks up events appended by another process since the log was
+	 *    opened or last refreshed.  If the log has been truncated and
+	 *    replaced in the meantime it is read again from the start - the
+	 *    replacement can be longer than what was read of the old log, so
+	 *    the size alone only catches it where the journal can't tell.
+	 * </p>
+	 */
+	synchronized void refresh() throws IOException {
+		if(journal.isReplaced() || (journal.size() < size)){
+			reopen();
+			return;
+		}
+		scan();
+	}
+	
+	/**
+	 * <p>
+	 *    Opens the journal again and reads it from the start.  A process
+	 *    taking over appending to a shared log does this first, so it
+	 *    doesn't append to a journal another process has replaced.
+	 * </p>
+	 */
+	synchronized void reopen() throws IOException {
+		journal.reopen();
+		open();
+	}
+	
+	private void index(Long sequence, Long offset){
+		if(offsets.isEmpty() || (sequence - offsets.lastKey() >= INDEX_INTERVAL)){
+			offsets.put(sequence, offset);
+		}
+	}
+	
+	synchronized Long getLastSequence(){
+		return lastSequence;
+	}
+	
+	synchronized void append(VideoChangeEvent event) throws IOException {
+		if(! tailChecked){
+			journal.truncate(size);
+			tailChecked = true;
+		}
+		
+		byte[] line = (event.toLogLine() + "\n").getBytes(ENCODING);
+		journal.append(line);
+		index(event.getSequence(), size);
+		size        += line.length;
+		lastSequence = event.getSequence();
+	}
+	
+	synchronized List<VideoChangeEvent> read(Long fromSequence, Integer maxEvents) throws IOException {
+		List<VideoChangeEvent> events = new ArrayList<VideoChangeEvent>();
+		if(fromSequence > lastSequence){
+			return events;
+		}
+		
+		Long                start = 0l;
+		Map.Entry<Long,Long> floor = offsets.floorEntry(fromSequence);
+		if(floor != null){
+			start = floor.getValue();
+		}
+		
+		InputStream in = journal.read(start);
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+			
+			String line = reader.readLine();
+			while((line != null) && (events.size() < maxEvents)){
+				VideoChangeEvent event = VideoChangeEvent.fromLogLine(line);
+				if(event.getSequence() > lastSequence){
+					break;
+				}
+				if(event.getSequence() >= fromSequence){
+					events.add(event);
+				}
+				line = reader.readLine();
+			}
+		}
+		finally {
+			in.close();
+		}
+		return events;
+	}
+	
+	/**
+	 * <p>
+	 *    Drops every event older than the given sequence number.  The most
+	 *    recent event is always kept, so the sequence carries on after a
+	 *    restart.
+	 * </p>
+	 */
+	synchronized void truncate(Long beforeSequence) throws IOException {
+		Writer writer = new OutputStreamWriter(journal.replace(), ENCODING);
+		try {
+			Long from = Math.min(beforeSequence, lastSequence);
+			while(from <= lastSequence){
+				List<VideoChangeEvent> events = read(from, INDEX_INTERVAL);
+				if(events.isEmpty()){
+					break;
+				}
+				for(VideoChangeEvent event : events){
+					writer.write(event.toLogLine() + "\n");
+				}
+				from = events.get(events.size() - 1).getSequence() + 1;
+			}
+		}
+		finally {
+			// Puts the replacement in place
+			writer.close();
+		}
+		open();
+	}
+	
+	synchronized void sync() throws IOException {
+		journal.force();
+	}
+	
+	synchronized void close() throws IOException {
+		journal.close();
+	}
+}
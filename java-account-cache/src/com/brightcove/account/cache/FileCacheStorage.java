@@ -0,0 +1,620 @@
+package com.brightcove.account.cache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.FileUtils;
+
+import com.brightcove.commons.collection.CollectionUtils;
+
+/**
+ * <p>
+ *    The cache's on-disk layout, everything named after the cache file:
+ * </p>
+ * <pre>
+ *    &lt;cache file&gt;                        index snapshot
+ *    &lt;cache file&gt;.metadata/1/2/3/123.xml  video records, one directory level per digit
+ *    &lt;cache file&gt;.&lt;name&gt;                 blobs and journals
+ * </pre>
+ * 
+ * <p>
+ *    Everything but journals is written to the side and renamed into
+ *    place, so readers - including other processes sharing the directory,
+ *    and readers holding a mapping of the old file - never see a partial
+ *    write.
+ * </p>
+ */
+public class FileCacheStorage implements CacheStorage {
+	private File cacheFile;
+	
+	public FileCacheStorage(File cacheFile){
+		this.cacheFile = cacheFile;
+	}
+	
+	// ---------------- Index snapshot ---------------------------
+	public byte[] readIndexSnapshot() throws IOException {
+		return readIfExists(cacheFile);
+	}
+	
+	public void writeIndexSnapshot(byte[] snapshot) throws IOException {
+		writeAtomically(cacheFile, snapshot);
+	}
+	
+	// ---------------- Records ---------------------------
+	public byte[] readRecord(Long videoId) throws IOException {
+		return readIfExists(idToMetadataFile(videoId));
+	}
+	
+	public ByteBuffer mapRecord(Long videoId) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(idToMetadataFile(videoId), "r");
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+		}
+		catch(FileNotFoundException fnfe){
+			return null;
+		}
+		finally {
+			closeQuietly(raf);
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Everything is read from one open of the record.  Rewrites rename a
+	 *    new file into place, so the open file stays the version that was
+	 *    checked.
+	 * </p>
+	 */
+	public Long transferRecord(Long videoId, WritableByteChannel target, RecordDecoder decoder, MetadataTransferListener listener) throws IOException {
+		checkBlocking(target);
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(idToMetadataFile(videoId), "r");
+			FileChannel channel  = raf.getChannel();
+			long        size     = channel.size();
+			long        position = 0l;
+			
+			if(decoder != null){
+				ByteBuffer header = ByteBuffer.allocate((int)Math.min(size, decoder.getHeaderSize()));
+				readFully(channel, header);
+				header.flip();
+				if(decoder.isEncoded(header)){
+					// Has to go through the heap to be decoded
+					ByteBuffer record = ByteBuffer.allocate((int)size);
+					readFully(channel, record);
+					return writeFully(ByteBuffer.wrap(decoder.decodeRecord(record.array())), target, listener);
+				}
+			}
+			
+			if(listener != null){
+				listener.transferStarting(size);
+			}
+			
+			// transferTo() may move fewer bytes than asked for, so keep going
+			// until the whole record is out
+			while(position < size){
+				long written = channel.transferTo(position, size - position, target);
+				if(written <= 0){
+					// A blocking target never takes nothing; don't spin if it does
+					throw new IOException("Transfer of record '" + videoId + "' stalled after " + position + " of " + size + " bytes.");
+				}
+				position += written;
+			}
+			return position;
+		}
+		catch(FileNotFoundException fnfe){
+			return -1l;
+		}
+		finally {
+			closeQuietly(raf);
+		}
+	}
+	
+	public void writeRecord(Long videoId, byte[] record) throws IOException {
+		File metadataFile = idToMetadataFile(videoId);
+		try {
+			FileUtils.forceMkdir(metadataFile.getParentFile());
+			writeAtomically(metadataFile, record);
+		}
+		catch(IOException ioe){
+			// The directory may have been pruned as empty between making it
+			// and moving the record in
+			FileUtils.forceMkdir(metadataFile.getParentFile());
+			writeAtomically(metadataFile, record);
+		}
+	}
+	
+	public void deleteRecord(Long videoId) throws IOException {
+		File metadataFile = idToMetadataFile(videoId);
+		if(metadataFile.exists() && (! metadataFile.delete())){
+			throw new IOException("Couldn't delete '" + metadataFile.getAbsolutePath() + "'.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Walks the metadata directories depth first, files before
+	 *    subdirectories, so records are read back in roughly the order they
+	 *    sit on disk.  Each partition is a contiguous run of that walk.
+	 * </p>
+	 */
+	public List<Iterator<Long>> listRecords(Integer partitions){
+		List<Iterator<Long>> walkers = new ArrayList<Iterator<Long>>();
+		for(List<Unit> units : partition(getMetadataRoot(), partitions)){
+			walkers.add(new MetadataWalker(units));
+		}
+		return walkers;
+	}
+	
+	/**
+	 * <p>
+	 *    Removes the empty directories left behind by deleted records, and
+	 *    temp files older than the given age left behind by writes that
+	 *    never finished.  Records are never touched.
+	 * </p>
+	 * 
+	 * @return Number of directories and files removed
+	 */
+	public Integer pruneMetadata(Long tempFileAge){
+		return prune(getMetadataRoot(), System.currentTimeMillis() - tempFileAge, false);
+	}
+	
+	private static Integer prune(File dir, Long staleBefore, Boolean removeIfEmpty){
+		File[] entries = dir.listFiles();
+		if((entries == null) || Thread.currentThread().isInterrupted()){
+			return 0;
+		}
+		
+		Integer removed = 0;
+		for(File entry : entries){
+			if(entry.isDirectory()){
+				removed += prune(entry, staleBefore, true);
+			}
+			else if(entry.getName().endsWith(".tmp") && (entry.lastModified() < staleBefore) && entry.delete()){
+				removed++;
+			}
+		}
+		
+		// Only succeeds if nothing was written into it in the meantime
+		String[] left = dir.list();
+		if(removeIfEmpty && (left != null) && (left.length == 0) && dir.delete()){
+			removed++;
+		}
+		return removed;
+	}
+	
+	private File getMetadataRoot(){
+		return new File(cacheFile.getAbsolutePath() + ".metadata");
+	}
+	
+	private File idToMetadataFile(Long id){
+		String[] parts = (""+id).split("");
+		return new File(cacheFile.getAbsolutePath() + ".metadata/" + CollectionUtils.JoinToString(parts, "/") + "/" + id + ".xml");
+	}
+	
+	// ---------------- Blobs ---------------------------
+	public byte[] readBlob(String name) throws IOException {
+		return readIfExists(nameToFile(name));
+	}
+	
+	public void writeBlob(String name, byte[] data) throws IOException {
+		File file = nameToFile(name);
+		if(file.getParentFile() != null){
+			FileUtils.forceMkdir(file.getParentFile());
+		}
+		writeAtomically(file, data);
+	}
+	
+	public void deleteBlob(String name) throws IOException {
+		File file = nameToFile(name);
+		if(file.exists() && (! file.delete())){
+			throw new IOException("Couldn't delete '" + file.getAbsolutePath() + "'.");
+		}
+	}
+	
+	public List<String> listBlobs(String prefix){
+		String base = cacheFile.getAbsolutePath() + ".";
+		File   dir  = prefix.endsWith("/") ? nameToFile(prefix) : nameToFile(prefix).getParentFile();
+		
+		List<String> names = new ArrayList<String>();
+		File[]       files = (dir == null) ? null : dir.listFiles();
+		if(files == null){
+			return names;
+		}
+		for(File file : files){
+			String path = file.getAbsolutePath();
+			if(file.isFile() && path.startsWith(base) && (! path.endsWith(".tmp"))){
+				String name = path.substring(base.length()).replace(File.separatorChar, '/');
+				if(name.startsWith(prefix)){
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+	
+	private File nameToFile(String name){
+		return new File(cacheFile.getAbsolutePath() + "." + name);
+	}
+	
+	// ---------------- Journals ---------------------------
+	public CacheJournal openJournal(String name) throws IOException {
+		return new FileJournal(nameToFile(name));
+	}
+	
+	public File getCacheFile(){
+		return cacheFile;
+	}
+	
+	private static byte[] readIfExists(File file) throws IOException {
+		if(! file.exists()){
+			return null;
+		}
+		try {
+			return FileUtils.readFileToByteArray(file);
+		}
+		catch(FileNotFoundException fnfe){
+			// Deleted since it was checked
+			return null;
+		}
+	}
+	
+	static void writeAtomically(File file, byte[] content) throws IOException {
+		// Written to the side and moved into place, so readers holding a
+		// mapping of the old file never see it truncated underneath them.
+		// The temp file's name is unique, so another process writing the
+		// same file can't write into it or move it away first.
+		File tempFile = createTempFile(file);
+		try {
+			FileUtils.writeByteArrayToFile(tempFile, content);
+			moveIntoPlace(tempFile, file);
+		}
+		catch(IOException ioe){
+			tempFile.delete();
+			throw ioe;
+		}
+	}
+	
+	private static File createTempFile(File file) throws IOException {
+		return File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+	}
+	
+	private static void moveIntoPlace(File tempFile, File file) throws IOException {
+		if((! tempFile.renameTo(file)) && (! (file.delete() && tempFile.renameTo(file)))){
+			throw new IOException("Couldn't move '" + tempFile.getAbsolutePath() + "' to '" + file.getAbsolutePath() + "'.");
+		}
+	}
+	
+	static void checkBlocking(WritableByteChannel target) throws IOException {
+		if((target instanceof SelectableChannel) && (! ((SelectableChannel)target).isBlocking())){
+			throw new IOException("Records can only be transferred to a blocking channel.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Writes all of a heap buffer to a blocking channel, telling the
+	 *    listener its length first.
+	 * </p>
+	 */
+	static Long writeFully(ByteBuffer data, WritableByteChannel target, MetadataTransferListener listener) throws IOException {
+		long length = data.remaining();
+		if(listener != null){
+			listener.transferStarting(length);
+		}
+		while(data.hasRemaining()){
+			if(target.write(data) <= 0){
+				throw new IOException("Write stalled after " + (length - data.remaining()) + " of " + length + " bytes.");
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * <p>
+	 *    Fills the buffer from the channel, starting at the start of the
+	 *    file.
+	 * </p>
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, buffer.position()) < 0){
+				throw new IOException("Record ended after " + buffer.position() + " of " + buffer.limit() + " bytes.");
+			}
+		}
+	}
+	
+	private static void closeQuietly(RandomAccessFile raf){
+		if(raf != null){
+			try{ raf.close(); } catch(IOException ioe) {}
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Splits the metadata tree under the given root into contiguous
+	 *    storage order ranges, one list of units per partition.
+	 * </p>
+	 */
+	private static List<List<Unit>> partition(File root, Integer partitions){
+		List<Unit> units = new ArrayList<Unit>();
+		units.add(new Unit(root, true));
+		
+		// Brightcove ids share their leading digits, so keep expanding the
+		// tree until there are enough pieces to spread evenly
+		Boolean expanded = true;
+		while(expanded && (units.size() < partitions * 4)){
+			expanded = false;
+			List<Unit> next = new ArrayList<Unit>();
+			for(Unit unit : units){
+				if(unit.recursive){
+					next.add(new Unit(unit.dir, false));
+					for(File child : listDirectories(unit.dir)){
+						next.add(new Unit(child, true));
+					}
+					expanded = true;
+				}
+				else{
+					next.add(unit);
+				}
+			}
+			units = next;
+		}
+		
+		List<List<Unit>> result = new ArrayList<List<Unit>>();
+		for(int i=0; i<partitions; i++){
+			int from = (units.size() * i) / partitions;
+			int to   = (units.size() * (i + 1)) / partitions;
+			result.add(new ArrayList<Unit>(units.subList(from, to)));
+		}
+		return result;
+	}
+	
+	private static File[] listDirectories(File dir){
+		File[] dirs = dir.listFiles(new FileFilter(){
+			public boolean accept(File file){
+				return file.isDirectory();
+			}
+		});
+		if(dirs == null){
+			return new File[0];
+		}
+		Arrays.sort(dirs, BY_NAME);
+		return dirs;
+	}
+	
+	private static File[] listMetadataFiles(File dir){
+		File[] files = dir.listFiles(new FileFilter(){
+			public boolean accept(File file){
+				return file.isFile() && file.getName().matches("[0-9]+\\.xml");
+			}
+		});
+		if(files == null){
+			return new File[0];
+		}
+		Arrays.sort(files, BY_NAME);
+		return files;
+	}
+	
+	private static final Comparator<File> BY_NAME = new Comparator<File>(){
+		public int compare(File a, File b){
+			return a.getName().compareTo(b.getName());
+		}
+	};
+	
+	/**
+	 * <p>
+	 *    A piece of the metadata tree: either a whole directory subtree, or
+	 *    just the metadata files directly inside one directory.
+	 * </p>
+	 */
+	private static class Unit {
+		File    dir;
+		Boolean recursive;
+		
+		Unit(File dir, Boolean recursive){
+			this.dir       = dir;
+			this.recursive = recursive;
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Lazily walks a list of units depth first, files before
+	 *    subdirectories, holding only one directory listing per level.
+	 * </p>
+	 */
+	private static class MetadataWalker implements Iterator<Long> {
+		private Iterator<Unit>       units;
+		private LinkedList<File[]>   listings;
+		private LinkedList<Integer>  positions;
+		private Long                 next;
+		
+		MetadataWalker(Collection<Unit> units){
+			this.units = units.iterator();
+			listings   = new LinkedList<File[]>();
+			positions  = new LinkedList<Integer>();
+		}
+		
+		public boolean hasNext(){
+			while(next == null){
+				if(listings.isEmpty()){
+					if(! units.hasNext()){
+						return false;
+					}
+					push(units.next());
+					continue;
+				}
+				
+				File[]  listing  = listings.getLast();
+				Integer position = positions.removeLast();
+				if(position >= listing.length){
+					listings.removeLast();
+					continue;
+				}
+				positions.addLast(position + 1);
+				
+				File entry = listing[position];
+				if(entry.isDirectory()){
+					push(new Unit(entry, true));
+				}
+				else{
+					String name = entry.getName();
+					next = Long.parseLong(name.substring(0, name.length() - 4));
+				}
+			}
+			return true;
+		}
+		
+		public Long next(){
+			if(! hasNext()){
+				throw new NoSuchElementException();
+			}
+			Long videoId = next;
+			next = null;
+			return videoId;
+		}
+		
+		public void remove(){
+			throw new UnsupportedOperationException("Records can't be removed through a listing.");
+		}
+		
+		private void push(Unit unit){
+			File[] files = listMetadataFiles(unit.dir);
+			File[] dirs  = unit.recursive ? listDirectories(unit.dir) : new File[0];
+			
+			File[] listing = new File[files.length + dirs.length];
+			System.arraycopy(files, 0, listing, 0, files.length);
+			System.arraycopy(dirs,  0, listing, files.length, dirs.length);
+			
+			listings.addLast(listing);
+			positions.addLast(0);
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    A journal file, appended to through one stream held open for as
+	 *    long as the journal is.  The stream stays on the file it was opened
+	 *    on, so a replacement is told apart by the file's key (device and
+	 *    inode on Unix) rather than by its size.
+	 * </p>
+	 */
+	private static class FileJournal implements CacheJournal {
+		private File             file;
+		private FileOutputStream out;
+		private Object           fileKey;
+		
+		FileJournal(File file) throws IOException {
+			this.file = file;
+			
+			if((file.getParentFile() != null) && (! file.getParentFile().exists())){
+				file.getParentFile().mkdirs();
+			}
+			out     = new FileOutputStream(file, true);
+			fileKey = currentFileKey();
+		}
+		
+		public Long size(){
+			return file.length();
+		}
+		
+		public synchronized void append(byte[] data) throws IOException {
+			out.write(data);
+		}
+		
+		public InputStream read(Long offset) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				in.getChannel().position(offset);
+			}
+			catch(IOException ioe){
+				in.close();
+				throw ioe;
+			}
+			return in;
+		}
+		
+		public synchronized void truncate(Long size) throws IOException {
+			if(out.getChannel().size() > size){
+				out.getChannel().truncate(size);
+			}
+		}
+		
+		public OutputStream replace() throws IOException {
+			final File tempFile = createTempFile(file);
+			return new FilterOutputStream(new FileOutputStream(tempFile)){
+				public void write(byte[] data, int offset, int length) throws IOException {
+					out.write(data, offset, length);
+				}
+				
+				public void close() throws IOException {
+					super.close();
+					synchronized(FileJournal.this){
+						FileJournal.this.out.close();
+						moveIntoPlace(tempFile, file);
+						FileJournal.this.out     = new FileOutputStream(file, true);
+						FileJournal.this.fileKey = currentFileKey();
+					}
+				}
+			};
+		}
+		
+		public synchronized Boolean isReplaced() throws IOException {
+			if(fileKey == null){
+				// The file system has no file keys
+				return false;
+			}
+			return ! fileKey.equals(currentFileKey());
+		}
+		
+		public synchronized void reopen() throws IOException {
+			out.close();
+			out     = new FileOutputStream(file, true);
+			fileKey = currentFileKey();
+		}
+		
+		private Object currentFileKey() throws IOException {
+			try {
+				return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+			}
+			catch(NoSuchFileException nsfe){
+				return null;
+			}
+		}
+		
+		public synchronized void force() throws IOException {
+			out.getChannel().force(false);
+		}
+		
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+}
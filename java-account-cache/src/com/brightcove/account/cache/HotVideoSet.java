@@ -0,0 +1,297 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+
+/**
+ * <p>
+ *    Keeps the most looked up videos of an {@link AccountCache} in memory
+ *    as stored XML, so lookups for them skip opening and reading the
+ *    metadata file.  Only the XML is held, not parsed videos, since a
+ *    parsed video handed to one caller could be changed under another.
+ * </p>
+ * 
+ * <p>
+ *    Which videos are hot is decided by an {@link AccessSketch} of every
+ *    lookup.  The sketch is saved with the cache, so after a restart the
+ *    hot set can be loaded up front ({@link #warm()}) instead of filling one
+ *    slow lookup at a time.
+ * </p>
+ * 
+ * <p>
+ *    Entries remember the fingerprint of the XML they were loaded from and
+ *    are dropped when the video is rewritten, or when a reloaded index no
+ *    longer agrees with them.
+ * </p>
+ */
+class HotVideoSet {
+	private static final Integer WARM_THREADS = 8;
+	
+	static final String SKETCH_NAME = "access";
+	
+	private AccountCache                     cache;
+	private CacheStorage                     storage;
+	private AccessSketch                     sketch;
+	private Integer                          capacity;
+	private ConcurrentHashMap<Long,HotVideo> videos;
+	private ScheduledExecutorService         refresher;
+	
+	HotVideoSet(AccountCache cache, CacheStorage storage, Integer capacity, Integer expectedIds){
+		this.cache    = cache;
+		this.storage  = storage;
+		this.capacity = capacity;
+		
+		videos = new ConcurrentHashMap<Long, HotVideo>();
+		try {
+			sketch = AccessSketch.fromBytes(storage.readBlob(SKETCH_NAME));
+		}
+		catch(IOException ioe){
+			cache.info("Couldn't read access sketch (" + ioe + ").  Starting a new one.");
+		}
+		if(sketch == null){
+			sketch = new AccessSketch(Math.max(capacity, expectedIds));
+		}
+	}
+	
+	void recordAccess(Long videoId){
+		sketch.increment(videoId);
+	}
+	
+	byte[] getXml(Long videoId){
+		HotVideo hot = videos.get(videoId);
+		return (hot == null) ? null : hot.xml;
+	}
+	
+	void invalidate(Long videoId){
+		videos.remove(videoId);
+	}
+	
+	/**
+	 * <p>
+	 *    Drops entries that no longer match the cache's index, after it has
+	 *    been reloaded.
+	 * </p>
+	 */
+	void retainCurrent(){
+		for(Long videoId : new ArrayList<Long>(videos.keySet())){
+			HotVideo hot         = videos.get(videoId);
+			Long     fingerprint = cache.getFingerprint(videoId);
+			// Without a fingerprint there's no telling whether it changed
+			if((hot != null) && ((fingerprint == null) || (! fingerprint.equals(hot.fingerprint)))){
+				videos.remove(videoId, hot);
+			}
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Makes the hot set the videos the sketch rates most looked up,
+	 *    loading the ones not already in memory in parallel.  Returns once
+	 *    they are all loaded.
+	 * </p>
+	 * 
+	 * @return Number of videos loaded
+	 */
+	Integer warm() throws AccountCacheException {
+		Set<Long> hottest = new HashSet<Long>(findHottest());
+		for(Long videoId : new ArrayList<Long>(videos.keySet())){
+			if(! hottest.contains(videoId)){
+				videos.remove(videoId);
+			}
+		}
+		
+		List<Callable<Boolean>> loads = new ArrayList<Callable<Boolean>>();
+		for(final Long videoId : hottest){
+			if(! videos.containsKey(videoId)){
+				loads.add(new Callable<Boolean>(){
+					public Boolean call(){
+						return load(videoId);
+					}
+				});
+			}
+		}
+		if(loads.isEmpty()){
+			return 0;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(WARM_THREADS, loads.size()), new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-warm");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			Integer loaded = 0;
+			for(Future<Boolean> result : executor.invokeAll(loads)){
+				if(result.get()){
+					loaded++;
+				}
+			}
+			return loaded;
+		}
+		catch(Exception e){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + e + " trying to load hot videos.");
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Ids of up to capacity cached videos with the highest estimated
+	 *    lookup counts.  Videos never looked up don't count, however much
+	 *    room is left.
+	 * </p>
+	 */
+	private List<Long> findHottest(){
+		PriorityQueue<long[]> hottest = new PriorityQueue<long[]>(Math.max(1, capacity), new Comparator<long[]>(){
+			public int compare(long[] a, long[] b){
+				return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+			}
+		});
+		
+		for(Long videoId : AccountCache.copyKeys(cache.getVideosById())){
+			long frequency = sketch.getFrequency(videoId);
+			if(frequency == 0){
+				continue;
+			}
+			if(hottest.size() < capacity){
+				hottest.add(new long[]{ frequency, videoId });
+			}
+			else if((capacity > 0) && (frequency > hottest.peek()[0])){
+				hottest.poll();
+				hottest.add(new long[]{ frequency, videoId });
+			}
+		}
+		
+		List<Long> ids = new ArrayList<Long>(hottest.size());
+		for(long[] entry : hottest){
+			ids.add(entry[1]);
+		}
+		return ids;
+	}
+	
+	private Boolean load(Long videoId){
+		try {
+			String xml = cache.readVideoXml(videoId);
+			if(xml == null){
+				return false;
+			}
+			
+			HotVideo hot = new HotVideo(xml.getBytes("UTF-8"), AccountCache.fingerprint(xml));
+			if(! isCurrent(videoId, hot)){
+				return false;
+			}
+			videos.put(videoId, hot);
+			
+			// Rewritten between reading it and putting it in - the writer's
+			// invalidate may have come before the put
+			if(! isCurrent(videoId, hot)){
+				videos.remove(videoId, hot);
+				return false;
+			}
+			return true;
+		}
+		catch(Exception e){
+			cache.debug("Couldn't load hot video '" + videoId + "' (" + e + ").");
+			return false;
+		}
+	}
+	
+	private Boolean isCurrent(Long videoId, HotVideo hot){
+		// Videos written before fingerprints were kept have none to check against
+		Long fingerprint = cache.getFingerprint(videoId);
+		return (fingerprint == null) || fingerprint.equals(hot.fingerprint);
+	}
+	
+	/**
+	 * <p>
+	 *    Saves the sketch and re-warms the hot set every interval, so it
+	 *    follows what is being looked up now.  A read-only cache only
+	 *    re-warms: processes sharing a cache directory leave saving the
+	 *    sketch to the writer, rather than overwrite each other's.
+	 * </p>
+	 */
+	synchronized void start(Long refreshInterval){
+		if((refresher != null) || (refreshInterval == null) || (refreshInterval <= 0)){
+			return;
+		}
+		
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-hot-set");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try {
+					if(! cache.getReadOnly()){
+						save();
+					}
+					warm();
+				}
+				catch(Exception e){
+					cache.info("Couldn't refresh hot set (" + e + ").");
+				}
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	synchronized void stop(){
+		if(refresher != null){
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+	
+	void save() throws AccountCacheException {
+		try {
+			storage.writeBlob(SKETCH_NAME, sketch.toBytes());
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to save access sketch.");
+		}
+	}
+	
+	AccessSketch getSketch(){
+		return sketch;
+	}
+	
+	Integer getCapacity(){
+		return capacity;
+	}
+	
+	Integer size(){
+		return videos.size();
+	}
+	
+	private static class HotVideo {
+		private byte[] xml;
+		private Long   fingerprint;
+		
+		HotVideo(byte[] xml, Long fingerprint){
+			this.xml         = xml;
+			this.fingerprint = fingerprint;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package com.brightcove.account.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+import com.brightcove.commons.catalog.objects.Video;
+
+/**
+ * <p>
+ *    Checks an {@link AccountCache}'s index against its metadata store and
+ *    repairs what has drifted apart: records left behind by failed deletes
+ *    or crashes between writing a record and saving the index, index
+ *    entries whose record is missing or damaged, reference ids and
+ *    modified dates for videos no longer in the index, and missing
+ *    modified dates.
+ * </p>
+ * 
+ * <p>
+ *    The record listing and the index are walked in parallel, at a limited
+ *    rate, without holding the cache's lock.  Only once something looks
+ *    wrong is it checked again with the lock held, so a sync changing the
+ *    video in the meantime isn't mistaken for damage.  Videos whose record
+ *    can't be trusted are queued for the next sync to fetch again; nothing
+ *    is repaired on a read-only cache.
+ * </p>
+ */
+class IntegrityChecker {
+	private static final Long TEMP_FILE_AGE = 60 * 60 * 1000l;
+	
+	private AccountCache             cache;
+	private Integer                  threads;
+	private Long                     permitInterval;
+	private Long                     nextPermit;
+	private Object                   checkLock;
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * @param maxRecordsPerSecond Most records to read a second, across all threads, or null for no limit
+	 */
+	IntegrityChecker(AccountCache cache, Integer threads, Integer maxRecordsPerSecond){
+		this.cache   = cache;
+		this.threads = threads;
+		
+		permitInterval = ((maxRecordsPerSecond == null) || (maxRecordsPerSecond <= 0)) ? 0l : (1000000000l / maxRecordsPerSecond);
+		nextPermit     = System.nanoTime();
+		checkLock      = new Object();
+	}
+	
+	/**
+	 * <p>
+	 *    Runs one full check.  Only one check runs at a time; a second
+	 *    caller waits for the first to finish.
+	 * </p>
+	 */
+	IntegrityReport check() throws AccountCacheException {
+		synchronized(checkLock){
+			Boolean         repair  = ! cache.getReadOnly();
+			IntegrityReport report  = new IntegrityReport(repair);
+			CacheStorage    storage = cache.getStorage();
+			
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for(Iterator<Long> records : storage.listRecords(threads)){
+				tasks.add(scanRecords(records, report, repair));
+			}
+			List<Long> videoIds = cache.snapshotVideoIds();
+			for(int i=0; i<threads; i++){
+				int from = (videoIds.size() * i) / threads;
+				int to   = (videoIds.size() * (i + 1)) / threads;
+				tasks.add(checkEntries(videoIds.subList(from, to), report, repair));
+			}
+			
+			Boolean complete = runAll(tasks);
+			if(complete){
+				checkReferenceIds(report, repair);
+				checkDates(report, repair);
+				
+				if(repair && (storage instanceof FileCacheStorage)){
+					report.setPruned(((FileCacheStorage)storage).pruneMetadata(TEMP_FILE_AGE));
+				}
+				complete = ! Thread.currentThread().isInterrupted();
+			}
+			report.finish(complete);
+			
+			cache.setIntegrityReport(report);
+			cache.info("Integrity check " + report + ".");
+			return report;
+		}
+	}
+	
+	/**
+	 * @return False if interrupted before all the tasks finished
+	 */
+	private Boolean runAll(List<Callable<Void>> tasks) throws AccountCacheException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-integrity-check");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for(Future<Void> result : executor.invokeAll(tasks)){
+				result.get();
+			}
+			return true;
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch(ExecutionException ee){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + ee.getCause() + " trying to check cache integrity.");
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Looks for stored records with no index entry.
+	 * </p>
+	 */
+	private Callable<Void> scanRecords(final Iterator<Long> records, final IntegrityReport report, final Boolean repair){
+		return new Callable<Void>(){
+			public Void call(){
+				while(records.hasNext() && (! Thread.currentThread().isInterrupted())){
+					Long videoId = records.next();
+					report.recordListed();
+					
+					if(! cache.getVideosById().containsKey(videoId)){
+						Boolean removed = repair && cache.removeOrphanRecord(videoId);
+						if(removed || cache.isOrphanRecord(videoId)){
+							report.orphanFound(videoId, removed);
+						}
+					}
+				}
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * <p>
+	 *    Reads the record behind each index entry, checking it is there and
+	 *    still matches the fingerprint it was written with.
+	 * </p>
+	 */
+	private Callable<Void> checkEntries(final List<Long> videoIds, final IntegrityReport report, final Boolean repair){
+		return new Callable<Void>(){
+			public Void call(){
+				for(Long videoId : videoIds){
+					if(! throttle()){
+						break;
+					}
+					report.entryChecked();
+					checkEntry(videoId, report, repair);
+				}
+				return null;
+			}
+		};
+	}
+	
+	private void checkEntry(Long videoId, IntegrityReport report, Boolean repair){
+		String  xml     = null;
+		Video   video   = null;
+		Boolean missing = false;
+		Boolean damaged = false;
+		try {
+			xml     = cache.readVideoXml(videoId);
+			missing = (xml == null);
+			if(! missing){
+				Long fingerprint = cache.getFingerprint(videoId);
+				if((fingerprint != null) && (! fingerprint.equals(AccountCache.fingerprint(xml)))){
+					damaged = true;
+				}
+				else{
+					video   = AccountCache.parseVideo(xml);
+					damaged = (video == null) || (! videoId.equals(video.getId()));
+				}
+			}
+		}
+		catch(Exception e){
+			damaged = true;
+		}
+		
+		if((missing || damaged) && cache.isRecordBroken(videoId)){
+			if(repair){
+				cache.queueRefetch(videoId);
+			}
+			if(missing){
+				report.missingFound(videoId, repair);
+			}
+			else{
+				report.damagedFound(videoId, repair);
+			}
+			return;
+		}
+		
+		if((video != null) && (cache.getVideoLastModifiedDates().get(videoId) == null)){
+			Date lastModified = video.getLastModifiedDate();
+			if(repair && (lastModified != null) && cache.repairLastModified(videoId, lastModified)){
+				report.dateRepaired();
+			}
+		}
+	}
+	
+	private void checkReferenceIds(IntegrityReport report, Boolean repair){
+		for(Map.Entry<String,Long> entry : cache.snapshotReferenceIds().entrySet()){
+			if(! cache.getVideosById().containsKey(entry.getValue())){
+				if((! repair) || cache.removeDanglingReferenceId(entry.getKey(), entry.getValue())){
+					report.danglingReferenceIdFound();
+				}
+			}
+		}
+	}
+	
+	private void checkDates(IntegrityReport report, Boolean repair){
+		for(Long videoId : cache.snapshotDatedVideoIds()){
+			if(! cache.getVideosById().containsKey(videoId)){
+				if((! repair) || cache.removeDanglingDate(videoId)){
+					report.danglingDateFound();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Waits for the next read permit, sharing the rate between all the
+	 *    checking threads.
+	 * </p>
+	 * 
+	 * @return False if interrupted while waiting
+	 */
+	private Boolean throttle(){
+		if(Thread.currentThread().isInterrupted()){
+			return false;
+		}
+		if(permitInterval == 0){
+			return true;
+		}
+		
+		long wait;
+		synchronized(this){
+			long now = System.nanoTime();
+			// Time spent idle between checks doesn't build up into a burst
+			nextPermit = Math.max(nextPermit, now) + permitInterval;
+			wait       = nextPermit - permitInterval - now;
+		}
+		if(wait > 0){
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>
+	 *    Runs a check every interval in the background, starting one
+	 *    interval from now.
+	 * </p>
+	 */
+	synchronized void start(Long interval){
+		if((scheduler != null) || (interval == null) || (interval <= 0)){
+			return;
+		}
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-integrity");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try {
+					check();
+				}
+				catch(Exception e){
+					cache.info("Couldn't check cache integrity (" + e + ").");
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * <p>
+	 *    Stops the background checks, interrupting one in progress.
+	 * </p>
+	 */
+	synchronized void stop(){
+		if(scheduler != null){
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.brightcove.account.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *    What one integrity check of an {@link AccountCache} found, and what it
+ *    did about it.
+ * </p>
+ * 
+ * <p>
+ *    Counts cover the whole check; for the problems tied to a video, the
+ *    first few ids are kept as well so they can be looked into.  A check on
+ *    a read-only cache only reports - nothing is repaired, removed or
+ *    queued.
+ * </p>
+ */
+public class IntegrityReport {
+	public static final Integer MAX_SAMPLES = 100;
+	
+	private Date          started;
+	private Long          elapsed;
+	private Boolean       repair;
+	private Boolean       complete;
+	private AtomicInteger entriesChecked;
+	private AtomicInteger recordsListed;
+	private AtomicInteger orphanRecords;
+	private AtomicInteger orphansRemoved;
+	private AtomicInteger missingRecords;
+	private AtomicInteger damagedRecords;
+	private AtomicInteger queuedForRefetch;
+	private AtomicInteger danglingReferenceIds;
+	private AtomicInteger danglingDates;
+	private AtomicInteger datesRepaired;
+	private Integer       pruned;
+	private List<Long>    orphanSamples;
+	private List<Long>    missingSamples;
+	private List<Long>    damagedSamples;
+	
+	IntegrityReport(Boolean repair){
+		this.repair = repair;
+		
+		started              = new Date();
+		elapsed              = 0l;
+		complete             = false;
+		entriesChecked       = new AtomicInteger();
+		recordsListed        = new AtomicInteger();
+		orphanRecords        = new AtomicInteger();
+		orphansRemoved       = new AtomicInteger();
+		missingRecords       = new AtomicInteger();
+		damagedRecords       = new AtomicInteger();
+		queuedForRefetch     = new AtomicInteger();
+		danglingReferenceIds = new AtomicInteger();
+		danglingDates        = new AtomicInteger();
+		datesRepaired        = new AtomicInteger();
+		pruned               = 0;
+		orphanSamples        = Collections.synchronizedList(new ArrayList<Long>());
+		missingSamples       = Collections.synchronizedList(new ArrayList<Long>());
+		damagedSamples       = Collections.synchronizedList(new ArrayList<Long>());
+	}
+	
+	void entryChecked(){
+		entriesChecked.incrementAndGet();
+	}
+	
+	void recordListed(){
+		recordsListed.incrementAndGet();
+	}
+	
+	void orphanFound(Long videoId, Boolean removed){
+		orphanRecords.incrementAndGet();
+		if(removed){
+			orphansRemoved.incrementAndGet();
+		}
+		sample(orphanSamples, videoId);
+	}
+	
+	void missingFound(Long videoId, Boolean queued){
+		missingRecords.incrementAndGet();
+		if(queued){
+			queuedForRefetch.incrementAndGet();
+		}
+		sample(missingSamples, videoId);
+	}
+	
+	void damagedFound(Long videoId, Boolean queued){
+		damagedRecords.incrementAndGet();
+		if(queued){
+			queuedForRefetch.incrementAndGet();
+		}
+		sample(damagedSamples, videoId);
+	}
+	
+	void danglingReferenceIdFound(){
+		danglingReferenceIds.incrementAndGet();
+	}
+	
+	void danglingDateFound(){
+		danglingDates.incrementAndGet();
+	}
+	
+	void dateRepaired(){
+		datesRepaired.incrementAndGet();
+	}
+	
+	void setPruned(Integer pruned){
+		this.pruned = pruned;
+	}
+	
+	void finish(Boolean complete){
+		this.complete = complete;
+		
+		elapsed = System.currentTimeMillis() - started.getTime();
+	}
+	
+	private static void sample(List<Long> samples, Long videoId){
+		if(samples.size() < MAX_SAMPLES){
+			samples.add(videoId);
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    True if any inconsistency was found, repaired or not.
+	 * </p>
+	 */
+	public Boolean hasProblems(){
+		return (orphanRecords.get() + missingRecords.get() + damagedRecords.get() + danglingReferenceIds.get() + danglingDates.get() + datesRepaired.get()) > 0;
+	}
+	
+	public Date getStarted(){
+		return started;
+	}
+	
+	public Long getElapsed(){
+		return elapsed;
+	}
+	
+	public Boolean getRepair(){
+		return repair;
+	}
+	
+	/**
+	 * <p>
+	 *    False if the check was stopped part way, in which case the counts
+	 *    only cover what it got through.
+	 * </p>
+	 */
+	public Boolean isComplete(){
+		return complete;
+	}
+	
+	public Integer getEntriesChecked(){
+		return entriesChecked.get();
+	}
+	
+	public Integer getRecordsListed(){
+		return recordsListed.get();
+	}
+	
+	public Integer getOrphanRecords(){
+		return orphanRecords.get();
+	}
+	
+	public Integer getOrphansRemoved(){
+		return orphansRemoved.get();
+	}
+	
+	public Integer getMissingRecords(){
+		return missingRecords.get();
+	}
+	
+	public Integer getDamagedRecords(){
+		return damagedRecords.get();
+	}
+	
+	public Integer getQueuedForRefetch(){
+		return queuedForRefetch.get();
+	}
+	
+	public Integer getDanglingReferenceIds(){
+		return danglingReferenceIds.get();
+	}
+	
+	public Integer getDanglingDates(){
+		return danglingDates.get();
+	}
+	
+	public Integer getDatesRepaired(){
+		return datesRepaired.get();
+	}
+	
+	/**
+	 * @return Number of empty metadata directories and stale temp files removed
+	 */
+	public Integer getPruned(){
+		return pruned;
+	}
+	
+	public List<Long> getOrphanSamples(){
+		return new ArrayList<Long>(orphanSamples);
+	}
+	
+	public List<Long> getMissingSamples(){
+		return new ArrayList<Long>(missingSamples);
+	}
+	
+	public List<Long> getDamagedSamples(){
+		return new ArrayList<Long>(damagedSamples);
+	}
+	
+	public String toString(){
+		return (complete ? "complete" : "stopped") + " after " + elapsed + " ms: " +
+			entriesChecked + " index entries and " + recordsListed + " records checked, " +
+			orphanRecords + " orphaned records (" + orphansRemoved + " removed), " +
+			missingRecords + " missing and " + damagedRecords + " damaged records (" + queuedForRefetch + " queued for re-fetch), " +
+			danglingReferenceIds + " dangling reference ids, " + danglingDates + " dangling dates, " +
+			datesRepaired + " dates repaired, " + pruned + " pruned";
+	}
+}
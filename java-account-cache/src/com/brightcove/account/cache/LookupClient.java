@@ -0,0 +1,224 @@
+package com.brightcove.account.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+import com.brightcove.commons.catalog.objects.Video;
+import com.brightcove.commons.catalog.objects.Videos;
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+import com.brightcove.commons.catalog.objects.enumerations.SortOrderTypeEnum;
+import com.brightcove.commons.xml.XalanUtils;
+
+/**
+ * <p>
+ *    Thin client for a {@link LookupServer}, with the same lookup methods as
+ *    {@link AccountCache}.  Connections are kept alive and reused between
+ *    calls.
+ * </p>
+ */
+public class LookupClient {
+	private static final String ENCODING = "UTF-8";
+	
+	private String  baseUrl;
+	private Integer connectTimeout;
+	private Integer readTimeout;
+	
+	public LookupClient(){
+		this("http://127.0.0.1:" + LookupServer.DEFAULT_PORT);
+	}
+	
+	public LookupClient(String baseUrl){
+		this.baseUrl = baseUrl;
+		
+		connectTimeout = 1000;
+		readTimeout    = 5000;
+	}
+	
+	public Video getVideoById(Long videoId) throws AccountCacheException {
+		return getVideo("/videos/" + videoId);
+	}
+	
+	public Video getVideoByIdUnfiltered(Long videoId) throws AccountCacheException {
+		return getVideo("/videos/" + videoId + "?unfiltered=true");
+	}
+	
+	public Video getVideoByReferenceId(String refId) throws AccountCacheException {
+		return getVideo("/videos/reference/" + encode(refId));
+	}
+	
+	public Video getVideoByReferenceIdUnfiltered(String refId) throws AccountCacheException {
+		return getVideo("/videos/reference/" + encode(refId) + "?unfiltered=true");
+	}
+	
+	/**
+	 * <p>
+	 *    Looks up several videos in one request.  Videos that aren't found
+	 *    are left out of the result.
+	 * </p>
+	 */
+	public List<Video> getVideosByIds(Collection<Long> videoIds, Boolean unfiltered) throws AccountCacheException {
+		List<Video> result = new ArrayList<Video>();
+		if(videoIds.isEmpty()){
+			return result;
+		}
+		
+		StringBuilder ids = new StringBuilder();
+		for(Long videoId : videoIds){
+			if(ids.length() > 0){
+				ids.append(',');
+			}
+			ids.append(videoId);
+		}
+		
+		String body = get("/videos?ids=" + ids + (unfiltered ? "&unfiltered=true" : ""));
+		if(body != null){
+			result.addAll(parseVideos(body));
+		}
+		return result;
+	}
+	
+	public List<Long> listVideoIds(ItemStateEnum state, VideoIndexSortEnum sortBy, SortOrderTypeEnum sortOrder, Integer pageSize, Integer pageNumber) throws AccountCacheException {
+		StringBuilder path = new StringBuilder("/videos/ids?pageSize=" + pageSize + "&page=" + pageNumber);
+		if(state != null){
+			path.append("&state=").append(state);
+		}
+		if(sortBy != null){
+			path.append("&sort=").append(sortBy);
+		}
+		if(sortOrder != null){
+			path.append("&order=").append(sortOrder);
+		}
+		
+		List<Long> ids  = new ArrayList<Long>();
+		String     body = get(path.toString());
+		if(body != null){
+			for(String line : body.split("\n")){
+				if(line.trim().length() > 0){
+					ids.add(Long.parseLong(line.trim()));
+				}
+			}
+		}
+		return ids;
+	}
+	
+	public Integer countVideos(ItemStateEnum state) throws AccountCacheException {
+		String body = get("/videos/count" + ((state != null) ? ("?state=" + state) : ""));
+		if(body == null){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_LOOKUP_EXCEPTION, "Lookup server at '" + baseUrl + "' doesn't support counts.");
+		}
+		return Integer.parseInt(body.trim());
+	}
+	
+	private Video getVideo(String path) throws AccountCacheException {
+		String body = get(path);
+		if(body == null){
+			return null;
+		}
+		
+		List<Video> videos = parseVideos(body);
+		if(videos.isEmpty()){
+			return null;
+		}
+		return videos.get(0);
+	}
+	
+	private List<Video> parseVideos(String xml) throws AccountCacheException {
+		try {
+			return new Videos(XalanUtils.parseXml(xml));
+		}
+		catch(Exception e){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + e + " trying to parse lookup response.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Returns the response body, or null if the server answered 404.
+	 * </p>
+	 */
+	private String get(String path) throws AccountCacheException {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection)new URL(baseUrl + path).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			
+			Integer status = connection.getResponseCode();
+			if(status == HttpURLConnection.HTTP_OK){
+				return read(connection.getInputStream());
+			}
+			
+			// Drain the error body too, or the connection can't be reused
+			String message = read(connection.getErrorStream());
+			if(status == HttpURLConnection.HTTP_NOT_FOUND){
+				return null;
+			}
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_LOOKUP_EXCEPTION, "Lookup server answered " + status + " for '" + path + "': " + message.trim());
+		}
+		catch(IOException ioe){
+			if(connection != null){
+				connection.disconnect();
+			}
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_LOOKUP_EXCEPTION, "Caught " + ioe + " trying to reach lookup server at '" + baseUrl + path + "'.");
+		}
+	}
+	
+	private static String read(InputStream in) throws IOException {
+		if(in == null){
+			return "";
+		}
+		
+		try {
+			ByteArrayOutputStream body   = new ByteArrayOutputStream();
+			byte[]                buffer = new byte[8192];
+			int                   read   = in.read(buffer);
+			while(read != -1){
+				body.write(buffer, 0, read);
+				read = in.read(buffer);
+			}
+			return body.toString(ENCODING);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private static String encode(String value) throws AccountCacheException {
+		try {
+			// URLEncoder is for forms, paths want %20 rather than +
+			return URLEncoder.encode(value, ENCODING).replace("+", "%20");
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_LOOKUP_EXCEPTION, "Caught " + ioe + " trying to encode '" + value + "'.");
+		}
+	}
+	
+	public String getBaseUrl(){
+		return baseUrl;
+	}
+	
+	public Integer getConnectTimeout(){
+		return connectTimeout;
+	}
+	
+	public void setConnectTimeout(Integer connectTimeout){
+		this.connectTimeout = connectTimeout;
+	}
+	
+	public Integer getReadTimeout(){
+		return readTimeout;
+	}
+	
+	public void setReadTimeout(Integer readTimeout){
+		this.readTimeout = readTimeout;
+	}
+}
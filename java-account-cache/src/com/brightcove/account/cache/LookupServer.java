@@ -0,0 +1,533 @@
+package com.brightcove.account.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+import com.brightcove.commons.catalog.objects.Video;
+import com.brightcove.commons.catalog.objects.Videos;
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+import com.brightcove.commons.catalog.objects.enumerations.SortOrderTypeEnum;
+import com.brightcove.commons.xml.XalanUtils;
+
+/**
+ * <p>
+ *    Serves lookups from an {@link AccountCache} over HTTP/1.1, so one warm
+ *    cache per host can be shared by many processes.  {@link LookupClient}
+ *    is the matching client, but any HTTP client will do:
+ * </p>
+ * 
+ * <pre>
+ *    GET /videos/{id}                  metadata XML for an active video
+ *    GET /videos/reference/{refId}     metadata XML for an active video
+ *    GET /videos?ids=1,2,3             Videos XML for the active ones found
+ *    GET /videos/ids?state=&amp;sort=&amp;order=&amp;pageSize=&amp;page=
+ *                                      matching ids, one per line
+ *    GET /videos/count?state=          number of videos, as text
+ * </pre>
+ * 
+ * <p>
+ *    Add <code>unfiltered=true</code> to the single and batch lookups to
+ *    include inactive and deleted videos.  Single lookups are answered from
+ *    the index and the stored metadata file without building a
+ *    {@link Video}.
+ * </p>
+ * 
+ * <p>
+ *    If the cache is tracking access, its hot set is warmed before the
+ *    server starts listening, so the first requests after a restart don't
+ *    all go to disk.
+ * </p>
+ * 
+ * <p>
+ *    Each connection gets its own thread and stays open between requests.
+ *    Pipelined requests are answered in order, and responses are only
+ *    flushed once no more requests are waiting on the connection.
+ * </p>
+ */
+public class LookupServer implements Closeable {
+	public static final Integer DEFAULT_PORT = 8085;
+	
+	private static final Integer MAX_LINE_LENGTH = 8192;
+	private static final Integer MAX_BATCH_SIZE  = 1000;
+	private static final Integer IDLE_TIMEOUT    = 60000;
+	private static final String  ENCODING        = "UTF-8";
+	
+	private AccountCache        cache;
+	private InetSocketAddress   address;
+	private ServerSocketChannel serverChannel;
+	private ExecutorService     executor;
+	private Set<Socket>         connections;
+	private Thread              acceptor;
+	
+	public LookupServer(AccountCache cache){
+		this(cache, new InetSocketAddress("127.0.0.1", DEFAULT_PORT));
+	}
+	
+	public LookupServer(AccountCache cache, InetSocketAddress address){
+		this.cache   = cache;
+		this.address = address;
+		
+		connections = Collections.synchronizedSet(new HashSet<Socket>());
+	}
+	
+	public synchronized void start() throws AccountCacheException {
+		if(serverChannel != null){
+			return;
+		}
+		
+		cache.warmHotSet();
+		
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(address);
+		}
+		catch(IOException ioe){
+			serverChannel = null;
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_LOOKUP_EXCEPTION, "Caught " + ioe + " trying to listen on '" + address + "'.");
+		}
+		
+		executor = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-lookup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		acceptor = new Thread(new Runnable(){
+			public void run(){
+				accept();
+			}
+		}, "account-cache-lookup-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		cache.info("Lookup server listening on '" + serverChannel.socket().getLocalSocketAddress() + "'.");
+	}
+	
+	public synchronized void close(){
+		if(serverChannel == null){
+			return;
+		}
+		
+		try {
+			serverChannel.close();
+		}
+		catch(IOException ioe){
+			cache.info("Couldn't close lookup server socket (" + ioe + ").");
+		}
+		
+		synchronized(connections){
+			for(Socket socket : connections){
+				closeQuietly(socket);
+			}
+			connections.clear();
+		}
+		executor.shutdownNow();
+		serverChannel = null;
+	}
+	
+	/**
+	 * <p>
+	 *    The port actually bound, useful when started on port 0.
+	 * </p>
+	 */
+	public synchronized Integer getPort(){
+		if(serverChannel == null){
+			return null;
+		}
+		return serverChannel.socket().getLocalPort();
+	}
+	
+	private void accept(){
+		ServerSocketChannel channel = serverChannel;
+		while(channel.isOpen()){
+			final Socket socket;
+			try {
+				socket = channel.accept().socket();
+			}
+			catch(IOException ioe){
+				if(channel.isOpen()){
+					cache.info("Lookup server couldn't accept connection (" + ioe + ").");
+					continue;
+				}
+				return;
+			}
+			
+			connections.add(socket);
+			executor.execute(new Runnable(){
+				public void run(){
+					try {
+						serve(socket);
+					}
+					finally {
+						connections.remove(socket);
+						closeQuietly(socket);
+					}
+				}
+			});
+		}
+	}
+	
+	private void serve(Socket socket){
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			
+			InputStream  in  = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			
+			Boolean keepAlive = true;
+			while(keepAlive){
+				String requestLine = readLine(in);
+				if(requestLine == null){
+					return;
+				}
+				if(requestLine.length() == 0){
+					// Stray line break between requests
+					continue;
+				}
+				
+				Map<String,String> headers = new HashMap<String, String>();
+				String line = readLine(in);
+				while((line != null) && (line.length() > 0)){
+					int colon = line.indexOf(':');
+					if(colon > 0){
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+					}
+					line = readLine(in);
+				}
+				if(line == null){
+					return;
+				}
+				
+				String[] parts = requestLine.split(" ");
+				if(parts.length != 3){
+					respond(out, 400, "text/plain", bytes("Malformed request line.\n"), false);
+					out.flush();
+					return;
+				}
+				
+				String connection = headers.get("connection");
+				if("HTTP/1.0".equals(parts[2])){
+					keepAlive = "keep-alive".equalsIgnoreCase(connection);
+				}
+				else{
+					keepAlive = ! "close".equalsIgnoreCase(connection);
+				}
+				
+				if(headers.containsKey("content-length")){
+					// Nothing here takes a body, skip past it
+					long remaining = Long.parseLong(headers.get("content-length"));
+					while(remaining > 0){
+						long skipped = in.skip(remaining);
+						if(skipped <= 0){
+							return;
+						}
+						remaining -= skipped;
+					}
+				}
+				
+				if(! "GET".equals(parts[0])){
+					respond(out, 405, "text/plain", bytes("Only GET is supported.\n"), keepAlive);
+				}
+				else{
+					handle(parts[1], out, keepAlive);
+				}
+				
+				// Hold the response back while more pipelined requests are
+				// already waiting, so they go out together
+				if((! keepAlive) || (in.available() == 0)){
+					out.flush();
+				}
+			}
+		}
+		catch(SocketTimeoutException ste){
+			// Idle keep-alive connection
+		}
+		catch(IOException ioe){
+			cache.debug("Lookup connection closed (" + ioe + ").");
+		}
+		catch(RuntimeException re){
+			cache.info("Lookup server caught " + re + ", closing connection.");
+		}
+	}
+	
+	private void handle(String target, OutputStream out, Boolean keepAlive) throws IOException {
+		String             path  = target;
+		Map<String,String> query = new HashMap<String, String>();
+		int                mark  = target.indexOf('?');
+		if(mark >= 0){
+			path  = target.substring(0, mark);
+			query = parseQuery(target.substring(mark + 1));
+		}
+		Boolean unfiltered = "true".equals(query.get("unfiltered"));
+		
+		try {
+			if(path.equals("/videos")){
+				if(! query.containsKey("ids")){
+					respond(out, 400, "text/plain", bytes("Missing ids.\n"), keepAlive);
+					return;
+				}
+				respondVideos(out, query.get("ids"), unfiltered, keepAlive);
+			}
+			else if(path.equals("/videos/ids")){
+				List<Long> ids = cache.listVideoIds(
+					parseEnum(ItemStateEnum.class, query.get("state")),
+					parseEnum(VideoIndexSortEnum.class, query.containsKey("sort") ? query.get("sort") : "ID"),
+					parseEnum(SortOrderTypeEnum.class, query.get("order")),
+					parseInteger(query.get("pageSize"), 100),
+					parseInteger(query.get("page"), 0)
+				);
+				
+				StringBuilder body = new StringBuilder();
+				for(Long id : ids){
+					body.append(id).append('\n');
+				}
+				respond(out, 200, "text/plain", bytes(body.toString()), keepAlive);
+			}
+			else if(path.equals("/videos/count")){
+				Integer count = cache.countVideos(parseEnum(ItemStateEnum.class, query.get("state")));
+				respond(out, 200, "text/plain", bytes(count + "\n"), keepAlive);
+			}
+			else if(path.startsWith("/videos/reference/")){
+				String refId   = URLDecoder.decode(path.substring("/videos/reference/".length()), ENCODING);
+				Long   videoId = cache.getVideosByReferenceId().get(refId);
+				if((videoId == null) && cache.getReadThrough()){
+					respondVideo(out, cache.getVideoByReferenceIdUnfiltered(refId), unfiltered, keepAlive);
+					return;
+				}
+				respondVideo(out, videoId, unfiltered, keepAlive);
+			}
+			else if(path.startsWith("/videos/")){
+				respondVideo(out, Long.parseLong(path.substring("/videos/".length())), unfiltered, keepAlive);
+			}
+			else{
+				respond(out, 404, "text/plain", bytes("Unknown path '" + path + "'.\n"), keepAlive);
+			}
+		}
+		catch(IllegalArgumentException iae){
+			// Includes NumberFormatException
+			respond(out, 400, "text/plain", bytes("Bad request: " + iae.getMessage() + "\n"), keepAlive);
+		}
+		catch(AccountCacheException ace){
+			Integer status = 500;
+			if(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS.equals(ace.getCode())){
+				status = 400;
+			}
+			respond(out, status, "text/plain", bytes(ace.getMessage() + "\n"), keepAlive);
+		}
+	}
+	
+	private void respondVideo(OutputStream out, Long videoId, Boolean unfiltered, Boolean keepAlive) throws IOException, AccountCacheException {
+		if(videoId == null){
+			respond(out, 404, "text/plain", bytes("Video not found.\n"), keepAlive);
+			return;
+		}
+		
+		ItemStateEnum state = cache.getVideosById().get(videoId);
+		if(state == null){
+			if(cache.getReadThrough()){
+				respondVideo(out, cache.getVideoByIdUnfiltered(videoId), unfiltered, keepAlive);
+				return;
+			}
+			respond(out, 404, "text/plain", bytes("Video '" + videoId + "' not found.\n"), keepAlive);
+			return;
+		}
+		if((! unfiltered) && (! ItemStateEnum.ACTIVE.equals(state))){
+			respond(out, 404, "text/plain", bytes("Video '" + videoId + "' isn't active.\n"), keepAlive);
+			return;
+		}
+		
+		// The headers go out once the cache has the record open and knows its
+		// length, then the record follows straight from storage
+		final OutputStream headersOut = out;
+		final Boolean      keep       = keepAlive;
+		final long[]       length     = { -1l };
+		Long written;
+		try {
+			written = cache.transferVideoMetadata(videoId, Channels.newChannel(out), new MetadataTransferListener(){
+				public void transferStarting(Long bodyLength) throws IOException {
+					writeHeaders(headersOut, 200, "text/xml", bodyLength.intValue(), keep);
+					headersOut.flush();
+					length[0] = bodyLength;
+				}
+			});
+		}
+		catch(AccountCacheException ace){
+			if(length[0] < 0){
+				throw ace;
+			}
+			// Too late for an error response, the headers are already out
+			throw new IOException("Caught " + ace + " part way through metadata for video '" + videoId + "'.");
+		}
+		
+		if(length[0] < 0){
+			respond(out, 404, "text/plain", bytes("Video '" + videoId + "' not found.\n"), keepAlive);
+		}
+		else if(written != length[0]){
+			// Closing is the only way to keep the client from misreading what follows
+			throw new IOException("Sent " + written + " of " + length[0] + " bytes of metadata for video '" + videoId + "'.");
+		}
+	}
+	
+	private void respondVideo(OutputStream out, Video video, Boolean unfiltered, Boolean keepAlive) throws IOException, AccountCacheException {
+		// Read-through results that weren't written to the cache
+		if((video == null) || ((! unfiltered) && (! ItemStateEnum.ACTIVE.equals(video.getItemState())))){
+			respond(out, 404, "text/plain", bytes("Video not found.\n"), keepAlive);
+			return;
+		}
+		
+		Videos videos = new Videos();
+		videos.add(video);
+		respond(out, 200, "text/xml", toXml(videos), keepAlive);
+	}
+	
+	private void respondVideos(OutputStream out, String idList, Boolean unfiltered, Boolean keepAlive) throws IOException, AccountCacheException {
+		String[] ids = idList.split(",");
+		if(ids.length > MAX_BATCH_SIZE){
+			respond(out, 400, "text/plain", bytes("At most " + MAX_BATCH_SIZE + " ids per request.\n"), keepAlive);
+			return;
+		}
+		
+		Videos videos = new Videos();
+		for(String id : ids){
+			if(id.trim().length() == 0){
+				continue;
+			}
+			
+			Video video = null;
+			if(unfiltered){
+				video = cache.getVideoByIdUnfiltered(Long.parseLong(id.trim()));
+			}
+			else{
+				video = cache.getVideoById(Long.parseLong(id.trim()));
+			}
+			if(video != null){
+				videos.add(video);
+			}
+		}
+		respond(out, 200, "text/xml", toXml(videos), keepAlive);
+	}
+	
+	private byte[] toXml(Videos videos) throws AccountCacheException {
+		try {
+			return bytes(XalanUtils.prettyPrintWithTrAX(videos.toXml()));
+		}
+		catch(Exception e){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + e + " trying to generate XML for lookup response.");
+		}
+	}
+	
+	private void respond(OutputStream out, Integer status, String contentType, byte[] body, Boolean keepAlive) throws IOException {
+		writeHeaders(out, status, contentType, body.length, keepAlive);
+		out.write(body);
+	}
+	
+	private void writeHeaders(OutputStream out, Integer status, String contentType, Integer contentLength, Boolean keepAlive) throws IOException {
+		StringBuilder headers = new StringBuilder();
+		headers.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+		headers.append("Content-Type: ").append(contentType).append("; charset=UTF-8\r\n");
+		headers.append("Content-Length: ").append(contentLength).append("\r\n");
+		if(! keepAlive){
+			headers.append("Connection: close\r\n");
+		}
+		headers.append("\r\n");
+		out.write(headers.toString().getBytes("ISO-8859-1"));
+	}
+	
+	private static String reason(Integer status){
+		switch(status){
+			case 200: return "OK";
+			case 400: return "Bad Request";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			default:  return "Internal Server Error";
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Reads one CRLF or LF terminated line, or returns null at the end of
+	 *    the stream.
+	 * </p>
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b = in.read();
+		if(b == -1){
+			return null;
+		}
+		while((b != -1) && (b != '\n')){
+			if(b != '\r'){
+				line.write(b);
+			}
+			if(line.size() > MAX_LINE_LENGTH){
+				throw new IOException("Request line too long.");
+			}
+			b = in.read();
+		}
+		return line.toString("ISO-8859-1");
+	}
+	
+	private static Map<String,String> parseQuery(String query) throws IOException {
+		Map<String,String> params = new HashMap<String, String>();
+		for(String pair : query.split("&")){
+			int equals = pair.indexOf('=');
+			if(equals > 0){
+				params.put(URLDecoder.decode(pair.substring(0, equals), ENCODING), URLDecoder.decode(pair.substring(equals + 1), ENCODING));
+			}
+		}
+		return params;
+	}
+	
+	private static <T extends Enum<T>> T parseEnum(Class<T> type, String value){
+		if((value == null) || (value.length() == 0)){
+			return null;
+		}
+		return Enum.valueOf(type, value.toUpperCase());
+	}
+	
+	private static Integer parseInteger(String value, Integer defaultValue){
+		if((value == null) || (value.length() == 0)){
+			return defaultValue;
+		}
+		return Integer.parseInt(value);
+	}
+	
+	private static byte[] bytes(String value) throws IOException {
+		return value.getBytes(ENCODING);
+	}
+	
+	private static void closeQuietly(Socket socket){
+		try {
+			socket.close();
+		}
+		catch(IOException ioe){
+			// Already gone
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.brightcove.account.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * <p>
+ *    Keeps everything a cache persists on the heap.  Nothing survives the
+ *    process, so it suits tests, benchmarks that shouldn't measure the disk,
+ *    and caches rebuilt from the Media API on every start.
+ * </p>
+ * 
+ * <p>
+ *    Stored arrays are never modified in place - a write swaps in the new
+ *    array - so readers never see a partial write.
+ * </p>
+ */
+public class MemoryCacheStorage implements CacheStorage {
+	private volatile byte[]                         snapshot;
+	private ConcurrentSkipListMap<Long,byte[]>      records;
+	private ConcurrentHashMap<String,byte[]>        blobs;
+	private ConcurrentHashMap<String,MemoryJournal> journals;
+	
+	public MemoryCacheStorage(){
+		records  = new ConcurrentSkipListMap<Long, byte[]>();
+		blobs    = new ConcurrentHashMap<String, byte[]>();
+		journals = new ConcurrentHashMap<String, MemoryJournal>();
+	}
+	
+	// ---------------- Index snapshot ---------------------------
+	public byte[] readIndexSnapshot(){
+		return snapshot;
+	}
+	
+	public void writeIndexSnapshot(byte[] snapshot){
+		this.snapshot = snapshot.clone();
+	}
+	
+	// ---------------- Records ---------------------------
+	public byte[] readRecord(Long videoId){
+		byte[] record = records.get(videoId);
+		return (record == null) ? null : record.clone();
+	}
+	
+	public ByteBuffer mapRecord(Long videoId){
+		byte[] record = records.get(videoId);
+		return (record == null) ? null : ByteBuffer.wrap(record).asReadOnlyBuffer();
+	}
+	
+	public Long transferRecord(Long videoId, WritableByteChannel target, RecordDecoder decoder, MetadataTransferListener listener) throws IOException {
+		FileCacheStorage.checkBlocking(target);
+		
+		// Taken once - a write in the meantime swaps in a new array
+		byte[] record = records.get(videoId);
+		if(record == null){
+			return -1l;
+		}
+		
+		ByteBuffer data = ByteBuffer.wrap(record).asReadOnlyBuffer();
+		if((decoder != null) && decoder.isEncoded(data.duplicate())){
+			data = ByteBuffer.wrap(decoder.decodeRecord(record.clone()));
+		}
+		return FileCacheStorage.writeFully(data, target, listener);
+	}
+	
+	public void writeRecord(Long videoId, byte[] record){
+		records.put(videoId, record.clone());
+	}
+	
+	public void deleteRecord(Long videoId){
+		records.remove(videoId);
+	}
+	
+	/**
+	 * <p>
+	 *    Lists records in id order, split into ranges of about the same
+	 *    number of ids.
+	 * </p>
+	 */
+	public List<Iterator<Long>> listRecords(Integer partitions){
+		List<Long> ids = new ArrayList<Long>(records.keySet());
+		
+		List<Iterator<Long>> result = new ArrayList<Iterator<Long>>();
+		for(int i=0; i<partitions; i++){
+			int from = (ids.size() * i) / partitions;
+			int to   = (ids.size() * (i + 1)) / partitions;
+			result.add(ids.subList(from, to).iterator());
+		}
+		return result;
+	}
+	
+	// ---------------- Blobs ---------------------------
+	public byte[] readBlob(String name){
+		byte[] data = blobs.get(name);
+		return (data == null) ? null : data.clone();
+	}
+	
+	public void writeBlob(String name, byte[] data){
+		blobs.put(name, data.clone());
+	}
+	
+	public void deleteBlob(String name){
+		blobs.remove(name);
+	}
+	
+	public List<String> listBlobs(String prefix){
+		List<String> names = new ArrayList<String>();
+		for(String name : blobs.keySet()){
+			if(name.startsWith(prefix)){
+				names.add(name);
+			}
+		}
+		return names;
+	}
+	
+	// ---------------- Journals ---------------------------
+	public CacheJournal openJournal(String name){
+		MemoryJournal journal = journals.get(name);
+		if(journal == null){
+			journals.putIfAbsent(name, new MemoryJournal());
+			journal = journals.get(name);
+		}
+		return journal;
+	}
+	
+	/**
+	 * <p>
+	 *    A growable byte array.  Reads copy the requested range out, so a
+	 *    later truncate and append can't change what a reader sees.
+	 * </p>
+	 */
+	private static class MemoryJournal implements CacheJournal {
+		private byte[] data;
+		private int    size;
+		
+		MemoryJournal(){
+			data = new byte[4096];
+			size = 0;
+		}
+		
+		public synchronized Long size(){
+			return (long)size;
+		}
+		
+		public synchronized void append(byte[] bytes){
+			if(size + bytes.length > data.length){
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + bytes.length));
+			}
+			System.arraycopy(bytes, 0, data, size, bytes.length);
+			size += bytes.length;
+		}
+		
+		public synchronized InputStream read(Long offset){
+			int from = (int)Math.min(offset, size);
+			return new ByteArrayInputStream(Arrays.copyOfRange(data, from, size));
+		}
+		
+		public synchronized void truncate(Long size){
+			this.size = (int)Math.min(size, this.size);
+		}
+		
+		public OutputStream replace(){
+			return new ByteArrayOutputStream(){
+				public void close(){
+					synchronized(MemoryJournal.this){
+						MemoryJournal.this.data = toByteArray();
+						MemoryJournal.this.size = MemoryJournal.this.data.length;
+					}
+				}
+			};
+		}
+		
+		public Boolean isReplaced(){
+			// Only ever one journal object per name, replaced in place
+			return false;
+		}
+		
+		public void reopen(){
+			// Only ever one journal object per name, nothing to pick up
+		}
+		
+		public void force(){
+			// Nothing to flush
+		}
+		
+		public void close(){
+			// Left open, so the content is still there if it is opened again
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.brightcove.account.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ *    Compresses stored video metadata with {@link Deflater}, using a preset
+ *    dictionary trained from the account's own records.
+ * </p>
+ * 
+ * <p>
+ *    Individual metadata records are only a few KB, which is too little for
+ *    deflate to find much repetition on its own.  Nearly all of a record is
+ *    the same element names, rendition structures and URL prefixes as every
+ *    other record in the account though, so priming the compressor with a
+ *    dictionary of those fragments does most of the work.
+ * </p>
+ * 
+ * <p>
+ *    Compressed records start with a small header, so plain and compressed
+ *    records can be mixed and {@link #decode(byte[])} accepts both:
+ * </p>
+ * <pre>
+ *     0  byte[4] magic ('B', 'C', 'Z', 1)
+ *     4  int     dictionary id (0 = no dictionary)
+ *     8  int     uncompressed length (bytes)
+ *    12  ...     zlib stream
+ * </pre>
+ * 
+ * <p>
+ *    Dictionaries are numbered and kept as <code>dictionaries/&lt;id&gt;.dict</code>
+ *    blobs in the cache's {@link CacheStorage}.  Retraining adds a new
+ *    dictionary rather than replacing one, so older records stay readable.
+ * </p>
+ */
+public class MetadataCodec implements RecordDecoder {
+	public static final Integer MAX_DICTIONARY_SIZE = 32 * 1024;
+	public static final Integer NO_DICTIONARY       = 0;
+	
+	private static final byte[]  MAGIC         = { 'B', 'C', 'Z', 1 };
+	private static final Integer HEADER_SIZE   = 12;
+	private static final Integer MIN_FRAGMENT  = 4;
+	private static final Integer MAX_FRAGMENT  = 256;
+	private static final String  ENCODING      = "UTF-8";
+	private static final String  PREFIX        = "dictionaries/";
+	
+	private CacheStorage        storage;
+	private Map<Integer,byte[]> dictionaries;
+	private Integer             dictionaryId;
+	private Integer             level;
+	
+	public MetadataCodec(CacheStorage storage){
+		this.storage = storage;
+		
+		dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+		dictionaryId = NO_DICTIONARY;
+		level        = Deflater.DEFAULT_COMPRESSION;
+		
+		for(Integer id : listDictionaryIds()){
+			dictionaryId = Math.max(dictionaryId, id);
+		}
+	}
+	
+	public static Boolean isCompressed(byte[] data){
+		if(data.length < HEADER_SIZE){
+			return false;
+		}
+		for(int i=0; i<MAGIC.length; i++){
+			if(data[i] != MAGIC[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public static Boolean isCompressed(ByteBuffer data){
+		if(data.remaining() < HEADER_SIZE){
+			return false;
+		}
+		for(int i=0; i<MAGIC.length; i++){
+			if(data.get(data.position() + i) != MAGIC[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>
+	 *    Compresses a record with the current dictionary.
+	 * </p>
+	 */
+	public byte[] encode(String xml) throws IOException {
+		byte[]  raw        = xml.getBytes(ENCODING);
+		Integer id         = dictionaryId;
+		byte[]  dictionary = null;
+		if(! NO_DICTIONARY.equals(id)){
+			dictionary = getDictionary(id);
+			if(dictionary.length == 0){
+				// Too few samples to find anything in common
+				id         = NO_DICTIONARY;
+				dictionary = null;
+			}
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + HEADER_SIZE);
+		out.write(MAGIC);
+		out.write(ByteBuffer.allocate(8).putInt(id).putInt(raw.length).array());
+		
+		Deflater deflater = new Deflater(level);
+		try {
+			if(dictionary != null){
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(raw);
+			deflater.finish();
+			
+			byte[] buffer = new byte[4096];
+			while(! deflater.finished()){
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * <p>
+	 *    Returns the XML held in a stored record, decompressing it if needed.
+	 * </p>
+	 */
+	public String decode(byte[] data) throws IOException {
+		if(! isCompressed(data)){
+			return new String(data, ENCODING);
+		}
+		
+		ByteBuffer header = ByteBuffer.wrap(data, MAGIC.length, 8);
+		Integer    id     = header.getInt();
+		Integer    length = header.getInt();
+		byte[]     raw    = new byte[length];
+		
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+			
+			int offset = 0;
+			while(offset < length){
+				int read = inflater.inflate(raw, offset, length - offset);
+				if(read == 0){
+					if(inflater.needsDictionary()){
+						inflater.setDictionary(getDictionary(id));
+					}
+					else if(inflater.finished() || inflater.needsInput()){
+						throw new IOException("Compressed metadata is truncated (" + offset + " of " + length + " bytes).");
+					}
+				}
+				offset += read;
+			}
+		}
+		catch(DataFormatException dfe){
+			throw new IOException("Compressed metadata is corrupt (" + dfe.getMessage() + ").");
+		}
+		finally {
+			inflater.end();
+		}
+		return new String(raw, ENCODING);
+	}
+	
+	public String decode(ByteBuffer data) throws IOException {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return decode(bytes);
+	}
+	
+	public Integer getHeaderSize(){
+		return HEADER_SIZE;
+	}
+	
+	public Boolean isEncoded(ByteBuffer header){
+		return isCompressed(header);
+	}
+	
+	public byte[] decodeRecord(byte[] record) throws IOException {
+		return decode(record).getBytes(ENCODING);
+	}
+	
+	/**
+	 * <p>
+	 *    Builds a dictionary from the given sample records, stores it and
+	 *    makes it the one new records are compressed with.
+	 * </p>
+	 *  
+	 * @return Id of the new dictionary
+	 */
+	public synchronized Integer train(Collection<String> samples) throws IOException {
+		byte[]  dictionary = buildDictionary(samples, MAX_DICTIONARY_SIZE);
+		Integer id         = dictionaryId + 1;
+		for(Integer existing : listDictionaryIds()){
+			id = Math.max(id, existing + 1);
+		}
+		
+		storage.writeBlob(PREFIX + id + ".dict", dictionary);
+		dictionaries.put(id, dictionary);
+		dictionaryId = id;
+		return id;
+	}
+	
+	/**
+	 * <p>
+	 *    Picks the fragments (lines, tags and URL prefixes) found in the most
+	 *    samples, weighted by length.  The most valuable fragments go last,
+	 *    since deflate reaches the end of the dictionary most cheaply.
+	 * </p>
+	 */
+	public static byte[] buildDictionary(Collection<String> samples, Integer maxSize) throws IOException {
+		final Map<String,Integer> frequency = new HashMap<String, Integer>();
+		for(String sample : samples){
+			for(String fragment : fragments(sample)){
+				Integer count = frequency.get(fragment);
+				frequency.put(fragment, (count == null) ? 1 : count + 1);
+			}
+		}
+		
+		Integer      threshold  = Math.max(2, samples.size() / 10);
+		List<String> candidates = new ArrayList<String>();
+		for(Map.Entry<String,Integer> entry : frequency.entrySet()){
+			if(entry.getValue() >= threshold){
+				candidates.add(entry.getKey());
+			}
+		}
+		
+		Comparator<String> byScore = new Comparator<String>(){
+			public int compare(String a, String b){
+				Long scoreA = (long)frequency.get(a) * a.length();
+				Long scoreB = (long)frequency.get(b) * b.length();
+				int  result = scoreA.compareTo(scoreB);
+				return (result != 0) ? result : a.compareTo(b);
+			}
+		};
+		Collections.sort(candidates, Collections.reverseOrder(byScore));
+		
+		List<String> chosen = new ArrayList<String>();
+		Integer      size   = 0;
+		for(String candidate : candidates){
+			Integer length = candidate.getBytes(ENCODING).length;
+			if(size + length <= maxSize){
+				chosen.add(candidate);
+				size += length;
+			}
+		}
+		Collections.sort(chosen, byScore);
+		
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+		for(String fragment : chosen){
+			dictionary.write(fragment.getBytes(ENCODING));
+		}
+		return dictionary.toByteArray();
+	}
+	
+	private static Set<String> fragments(String sample){
+		// Counted once per sample, so frequency means "found in this many records"
+		Set<String> fragments = new HashSet<String>();
+		for(String line : sample.split("\n")){
+			add(fragments, line + "\n");
+			for(String piece : line.split("(?<=>)|(?=<)")){
+				add(fragments, piece);
+				
+				int scheme = piece.indexOf("://");
+				int slash  = piece.lastIndexOf('/');
+				if((scheme >= 0) && (slash > scheme + 3)){
+					add(fragments, piece.substring(0, slash + 1));
+				}
+			}
+		}
+		return fragments;
+	}
+	
+	private static void add(Set<String> fragments, String fragment){
+		if((fragment.trim().length() >= MIN_FRAGMENT) && (fragment.length() <= MAX_FRAGMENT)){
+			fragments.add(fragment);
+		}
+	}
+	
+	public byte[] getDictionary(Integer id) throws IOException {
+		byte[] dictionary = dictionaries.get(id);
+		if(dictionary == null){
+			// May have been trained by another process sharing the cache
+			dictionary = storage.readBlob(PREFIX + id + ".dict");
+			if(dictionary == null){
+				throw new IOException("Metadata dictionary " + id + " not found.");
+			}
+			dictionaries.put(id, dictionary);
+		}
+		return dictionary;
+	}
+	
+	private List<Integer> listDictionaryIds(){
+		List<Integer> ids = new ArrayList<Integer>();
+		for(String name : storage.listBlobs(PREFIX)){
+			String file = name.substring(PREFIX.length());
+			if(file.matches("[0-9]+\\.dict")){
+				ids.add(Integer.parseInt(file.substring(0, file.length() - 5)));
+			}
+		}
+		return ids;
+	}
+	
+	public Integer getDictionaryId(){
+		return dictionaryId;
+	}
+	
+	public Integer getLevel(){
+		return level;
+	}
+	
+	public void setLevel(Integer level){
+		this.level = level;
+	}
+}
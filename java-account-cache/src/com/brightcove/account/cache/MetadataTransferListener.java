@@ -0,0 +1,14 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ *    Told how long a video's metadata is once {@link AccountCache} has it
+ *    open for a transfer, before any of it is written - so a response's
+ *    headers can be sent ahead of the body.
+ * </p>
+ */
+public interface MetadataTransferListener {
+	public void transferStarting(Long length) throws IOException;
+}
@@ -0,0 +1,1125 @@
+package com.brightcove.account.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+
+/**
+ * <p>
+ *    Keeps the three video indexes of an account cache (state by id, last
+ *    modified date by id and id by reference id) outside of the Java heap.
+ * </p>
+ * 
+ * <p>
+ *    The indexes are stored as two open addressing hash tables with a fixed
+ *    record layout, either in direct buffers or in a memory mapped file.  When
+ *    the index is memory mapped, every write goes straight to the mapped file,
+ *    so reopening the index is just a matter of mapping the file again - there
+ *    is no load step.
+ * </p>
+ * 
+ * <p>
+ *    File layout (all values big endian):
+ * </p>
+ * <pre>
+ *    header (64 bytes)
+ *        0  int  magic
+ *        4  int  format version
+ *        8  int  id table capacity (slots)
+ *       12  int  reference id table capacity (slots)
+ *       16  int  videos with a state
+ *       20  int  videos with a last modified date
+ *       24  int  used id slots (live and removed)
+ *       28  int  reference ids
+ *       32  int  used reference id slots (live and removed)
+ *       36  int  videos with a content fingerprint
+ *       40  long sync watermark (millis, 0 = unknown)
+ *       48  int  videos with an unknown state
+ *       52  int  active videos
+ *       56  int  inactive videos
+ *       60  int  deleted videos
+ *    id table (32 bytes per slot)
+ *        0  long video id (0 = empty, -1 = removed)
+ *        8  long last modified date (millis)
+ *       16  byte item state
+ *       17  byte flags (1 = has state, 2 = has last modified date,
+ *                       4 = has content fingerprint)
+ *       24  long content fingerprint
+ *    reference id table (320 bytes per slot)
+ *        0  long video id (0 = empty, -1 = removed)
+ *        8  int  reference id hash code
+ *       12  short reference id length (chars)
+ *       14  char[150] reference id
+ * </pre>
+ * 
+ * <p>
+ *    Version 2 files, which had 24 byte id slots and no fingerprints, are
+ *    upgraded when opened.
+ * </p>
+ * 
+ * <p>
+ *    The primitive lookup methods ({@link #getState(long)},
+ *    {@link #getLastModified(long)} and {@link #getVideoIdByReferenceId(String)})
+ *    do not allocate.  The {@link Map} views exist so the index can stand in
+ *    for the heap maps used by {@link AccountCache}, and allocate boxed keys
+ *    and values like any other map would.
+ * </p>
+ * 
+ * <p>
+ *    All methods are synchronized on the index.
+ * </p>
+ */
+public class OffHeapVideoIndex {
+	public static final Integer MAX_REFERENCE_ID_LENGTH = 150;
+	public static final long    NOT_FOUND               = -1l;
+	public static final long    NO_DATE                 = Long.MIN_VALUE;
+	public static final long    NO_FINGERPRINT          = 0l;
+	
+	private static final int   MAGIC            = 0x42434958;
+	private static final int   FORMAT_VERSION   = 3;
+	private static final int   HEADER_SIZE      = 64;
+	private static final int   ID_SLOT_SIZE     = 32;
+	private static final int   V2_ID_SLOT_SIZE  = 24;
+	private static final int   REF_SLOT_SIZE    = 14 + (2 * MAX_REFERENCE_ID_LENGTH) + 6;
+	private static final int   INITIAL_CAPACITY = 1024;
+	private static final int   MAX_ID_SLOTS     = Integer.highestOneBit(Integer.MAX_VALUE / ID_SLOT_SIZE);
+	private static final int   MAX_REF_SLOTS    = Integer.highestOneBit(Integer.MAX_VALUE / REF_SLOT_SIZE);
+	private static final float MAX_LOAD         = 0.7f;
+	
+	private static final long EMPTY     = 0l;
+	private static final long TOMBSTONE = -1l;
+	
+	private static final byte FLAG_STATE = 1;
+	private static final byte FLAG_DATE  = 2;
+	private static final byte FLAG_PRINT = 4;
+	
+	private static final int H_MAGIC      = 0;
+	private static final int H_VERSION    = 4;
+	private static final int H_ID_CAP     = 8;
+	private static final int H_REF_CAP    = 12;
+	private static final int H_STATES     = 16;
+	private static final int H_DATES      = 20;
+	private static final int H_ID_USED    = 24;
+	private static final int H_REFS       = 28;
+	private static final int H_REF_USED   = 32;
+	private static final int H_PRINTS     = 36;
+	private static final int H_WATERMARK  = 40;
+	private static final int H_BY_STATE   = 48;
+	
+	private static final ItemStateEnum[] STATES = { null, ItemStateEnum.ACTIVE, ItemStateEnum.INACTIVE, ItemStateEnum.DELETED };
+	
+	static {
+		// Slot offsets and direct buffer sizes are ints, so a table at its
+		// largest has to fit in one
+		if(((long)MAX_ID_SLOTS * ID_SLOT_SIZE > Integer.MAX_VALUE) || ((long)MAX_REF_SLOTS * REF_SLOT_SIZE > Integer.MAX_VALUE)){
+			throw new ExceptionInInitializerError("Video index slot limits overflow an int.");
+		}
+	}
+	
+	private File             file;
+	private RandomAccessFile raf;
+	private ByteBuffer       header;
+	private ByteBuffer       ids;
+	private ByteBuffer       refs;
+	private int              idSlotSize;
+	private int              idCapacity;
+	private int              refCapacity;
+	private int              generation;
+	private long             modifications;
+	private boolean          readOnly;
+	
+	private Map<Long,ItemStateEnum> stateMap;
+	private Map<Long,Date>          lastModifiedMap;
+	private Map<String,Long>        referenceIdMap;
+	
+	private OffHeapVideoIndex(File file){
+		this.file = file;
+	}
+	
+	/**
+	 * <p>
+	 *    Creates an empty index held in direct buffers.  Nothing is persisted.
+	 * </p>
+	 * 
+	 * @return Empty index
+	 */
+	public static OffHeapVideoIndex allocate(){
+		OffHeapVideoIndex index = new OffHeapVideoIndex(null);
+		try {
+			index.create(INITIAL_CAPACITY, INITIAL_CAPACITY);
+		}
+		catch(IOException ioe){
+			// Direct buffers don't do any I/O
+			throw new IllegalStateException(ioe);
+		}
+		return index;
+	}
+	
+	/**
+	 * <p>
+	 *    Maps the index stored in the given file, creating the file if it
+	 *    doesn't exist yet.
+	 * </p>
+	 * 
+	 * @param file File holding the index
+	 * @return Mapped index
+	 * @throws IOException If the file can't be mapped, or isn't an index file
+	 */
+	public static OffHeapVideoIndex open(File file) throws IOException {
+		return open(file, false);
+	}
+	
+	/**
+	 * <p>
+	 *    Maps the index stored in the given file.  A read-only index never
+	 *    writes to the file - it isn't created, upgraded or grown, and any
+	 *    change throws a {@link ReadOnlyBufferException} - so processes that
+	 *    don't own the file can follow the one that does.
+	 * </p>
+	 * 
+	 * @param file File holding the index
+	 * @param readOnly Whether to map the file read-only
+	 * @return Mapped index
+	 * @throws IOException If the file can't be mapped, isn't an index file, or a read-only index doesn't exist or needs upgrading
+	 */
+	public static OffHeapVideoIndex open(File file, Boolean readOnly) throws IOException {
+		OffHeapVideoIndex index = new OffHeapVideoIndex(file);
+		index.readOnly = readOnly;
+		if(file.exists() && (file.length() > 0)){
+			index.map();
+		}
+		else if(readOnly){
+			throw new IOException("Video index '" + file.getAbsolutePath() + "' doesn't exist yet.");
+		}
+		else{
+			index.create(INITIAL_CAPACITY, INITIAL_CAPACITY);
+		}
+		return index;
+	}
+	
+	private void create(int idCapacity, int refCapacity) throws IOException {
+		this.idSlotSize  = ID_SLOT_SIZE;
+		this.idCapacity  = idCapacity;
+		this.refCapacity = refCapacity;
+		
+		if(file == null){
+			header = ByteBuffer.allocateDirect(HEADER_SIZE);
+			ids    = ByteBuffer.allocateDirect(idCapacity * idSlotSize);
+			refs   = ByteBuffer.allocateDirect(refCapacity * REF_SLOT_SIZE);
+		}
+		else{
+			File parent = file.getAbsoluteFile().getParentFile();
+			if((parent != null) && (! parent.exists()) && (! parent.mkdirs())){
+				throw new IOException("Couldn't create directory '" + parent.getAbsolutePath() + "'.");
+			}
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0l);
+			raf.setLength(HEADER_SIZE + ((long)idCapacity * idSlotSize) + ((long)refCapacity * REF_SLOT_SIZE));
+			mapRegions();
+		}
+		
+		header.putInt(H_MAGIC,   MAGIC);
+		header.putInt(H_VERSION, FORMAT_VERSION);
+		header.putInt(H_ID_CAP,  idCapacity);
+		header.putInt(H_REF_CAP, refCapacity);
+	}
+	
+	private void map() throws IOException {
+		raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+		if(raf.length() < HEADER_SIZE){
+			raf.close();
+			throw new IOException("File '" + file.getAbsolutePath() + "' is too short to be a video index.");
+		}
+		
+		MappedByteBuffer head = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		int version = head.getInt(H_VERSION);
+		if((head.getInt(H_MAGIC) != MAGIC) || ((version != FORMAT_VERSION) && (version != 2))){
+			raf.close();
+			throw new IOException("File '" + file.getAbsolutePath() + "' isn't a video index (or was written by an incompatible version).");
+		}
+		
+		if((version == 2) && readOnly){
+			raf.close();
+			throw new IOException("Video index '" + file.getAbsolutePath() + "' has to be upgraded by a writable index first.");
+		}
+		
+		idSlotSize  = (version == 2) ? V2_ID_SLOT_SIZE : ID_SLOT_SIZE;
+		idCapacity  = head.getInt(H_ID_CAP);
+		refCapacity = head.getInt(H_REF_CAP);
+		if((idCapacity <= 0) || (idCapacity > MAX_ID_SLOTS) || (refCapacity <= 0) || (refCapacity > MAX_REF_SLOTS)){
+			raf.close();
+			throw new IOException("Video index '" + file.getAbsolutePath() + "' has an invalid table capacity.");
+		}
+		if(raf.length() != HEADER_SIZE + ((long)idCapacity * idSlotSize) + ((long)refCapacity * REF_SLOT_SIZE)){
+			raf.close();
+			throw new IOException("Video index '" + file.getAbsolutePath() + "' is truncated.");
+		}
+		
+		mapRegions();
+		if(version == 2){
+			// Copying into a new file lays it out with the current slot size
+			rehash(idCapacity, refCapacity);
+		}
+	}
+	
+	private void mapRegions() throws IOException {
+		FileChannel         channel = raf.getChannel();
+		FileChannel.MapMode mode    = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+		long                idBytes = (long)idCapacity * idSlotSize;
+		
+		header = channel.map(mode, 0, HEADER_SIZE);
+		ids    = channel.map(mode, HEADER_SIZE, idBytes);
+		refs   = channel.map(mode, HEADER_SIZE + idBytes, (long)refCapacity * REF_SLOT_SIZE);
+	}
+	
+	// ---------------- Primitive lookups ---------------------------
+	public synchronized boolean containsVideo(long videoId){
+		int slot = findIdSlot(videoId);
+		return (slot >= 0) && ((flags(slot) & FLAG_STATE) != 0);
+	}
+	
+	public synchronized ItemStateEnum getState(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_STATE) == 0)){
+			return null;
+		}
+		return STATES[ids.get(slot * idSlotSize + 16)];
+	}
+	
+	public synchronized long getLastModified(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_DATE) == 0)){
+			return NO_DATE;
+		}
+		return ids.getLong(slot * idSlotSize + 8);
+	}
+	
+	/**
+	 * <p>
+	 *    Returns the content fingerprint stored for a video, or
+	 *    {@link #NO_FINGERPRINT} if there isn't one.
+	 * </p>
+	 */
+	public synchronized long getFingerprint(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_PRINT) == 0)){
+			return NO_FINGERPRINT;
+		}
+		return ids.getLong(slot * idSlotSize + 24);
+	}
+	
+	public synchronized long getVideoIdByReferenceId(String refId){
+		if(refId == null){
+			return NOT_FOUND;
+		}
+		int slot = findRefSlot(refId);
+		if(slot < 0){
+			return NOT_FOUND;
+		}
+		return refs.getLong(slot * REF_SLOT_SIZE);
+	}
+	
+	public synchronized int getStateCount(){
+		return header.getInt(H_STATES);
+	}
+	
+	public synchronized int getLastModifiedCount(){
+		return header.getInt(H_DATES);
+	}
+	
+	public synchronized int getFingerprintCount(){
+		return header.getInt(H_PRINTS);
+	}
+	
+	public synchronized int getReferenceIdCount(){
+		return header.getInt(H_REFS);
+	}
+	
+	/**
+	 * <p>
+	 *    Gets the number of videos in the given state, maintained as videos
+	 *    are added and removed.  A null state counts videos whose state isn't
+	 *    known.
+	 * </p>
+	 * 
+	 * @param state Item state to count
+	 * @return Number of videos in that state
+	 */
+	public synchronized int getStateCount(ItemStateEnum state){
+		return header.getInt(H_BY_STATE + (4 * encodeState(state)));
+	}
+	
+	/**
+	 * <p>
+	 *    Gets a counter that changes every time a state or last modified date
+	 *    changes, for callers caching results derived from the index.
+	 * </p>
+	 * 
+	 * @return Modification counter
+	 */
+	public synchronized long getModificationCount(){
+		return modifications;
+	}
+	
+	public synchronized boolean isEmpty(){
+		return (getStateCount() == 0) && (getLastModifiedCount() == 0) && (getReferenceIdCount() == 0);
+	}
+	
+	// ---------------- Mutations ---------------------------
+	public synchronized ItemStateEnum putState(long videoId, ItemStateEnum state){
+		int  slot     = claimIdSlot(videoId);
+		int  base     = slot * idSlotSize;
+		byte flags    = ids.get(base + 17);
+		ItemStateEnum previous = null;
+		
+		if((flags & FLAG_STATE) != 0){
+			previous = STATES[ids.get(base + 16)];
+			increment(H_BY_STATE + (4 * ids.get(base + 16)), -1);
+		}
+		else{
+			increment(H_STATES, 1);
+		}
+		
+		byte code = encodeState(state);
+		ids.put(base + 16, code);
+		ids.put(base + 17, (byte)(flags | FLAG_STATE));
+		increment(H_BY_STATE + (4 * code), 1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized ItemStateEnum removeState(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_STATE) == 0)){
+			return null;
+		}
+		
+		ItemStateEnum previous = STATES[ids.get(slot * idSlotSize + 16)];
+		increment(H_BY_STATE + (4 * ids.get(slot * idSlotSize + 16)), -1);
+		clearIdFlag(slot, FLAG_STATE);
+		increment(H_STATES, -1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized long putLastModified(long videoId, long lastModified){
+		int  slot     = claimIdSlot(videoId);
+		int  base     = slot * idSlotSize;
+		byte flags    = ids.get(base + 17);
+		long previous = NO_DATE;
+		
+		if((flags & FLAG_DATE) != 0){
+			previous = ids.getLong(base + 8);
+		}
+		else{
+			increment(H_DATES, 1);
+		}
+		
+		ids.putLong(base + 8, lastModified);
+		ids.put(base + 17, (byte)(flags | FLAG_DATE));
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized long removeLastModified(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_DATE) == 0)){
+			return NO_DATE;
+		}
+		
+		long previous = ids.getLong(slot * idSlotSize + 8);
+		clearIdFlag(slot, FLAG_DATE);
+		increment(H_DATES, -1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized long putFingerprint(long videoId, long fingerprint){
+		int  slot     = claimIdSlot(videoId);
+		int  base     = slot * idSlotSize;
+		byte flags    = ids.get(base + 17);
+		long previous = NO_FINGERPRINT;
+		
+		if((flags & FLAG_PRINT) != 0){
+			previous = ids.getLong(base + 24);
+		}
+		else{
+			increment(H_PRINTS, 1);
+		}
+		
+		ids.putLong(base + 24, fingerprint);
+		ids.put(base + 17, (byte)(flags | FLAG_PRINT));
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized long removeFingerprint(long videoId){
+		int slot = findIdSlot(videoId);
+		if((slot < 0) || ((flags(slot) & FLAG_PRINT) == 0)){
+			return NO_FINGERPRINT;
+		}
+		
+		long previous = ids.getLong(slot * idSlotSize + 24);
+		clearIdFlag(slot, FLAG_PRINT);
+		increment(H_PRINTS, -1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized long putReferenceId(String refId, long videoId){
+		if(refId == null){
+			throw new NullPointerException("Reference id can't be null.");
+		}
+		if(refId.length() > MAX_REFERENCE_ID_LENGTH){
+			throw new IllegalArgumentException("Reference id '" + refId + "' is longer than " + MAX_REFERENCE_ID_LENGTH + " characters.");
+		}
+		checkVideoId(videoId);
+		
+		int slot = findRefSlot(refId);
+		if(slot >= 0){
+			long previous = refs.getLong(slot * REF_SLOT_SIZE);
+			refs.putLong(slot * REF_SLOT_SIZE, videoId);
+			return previous;
+		}
+		
+		if(header.getInt(H_REF_USED) + 1 > refCapacity * MAX_LOAD){
+			rehash(idCapacity, grow(refCapacity, getReferenceIdCount(), MAX_REF_SLOTS));
+		}
+		
+		int hash = refId.hashCode();
+		int mask = refCapacity - 1;
+		int idx  = mix(hash) & mask;
+		while(true){
+			long current = refs.getLong(idx * REF_SLOT_SIZE);
+			if(current == EMPTY){
+				increment(H_REF_USED, 1);
+				break;
+			}
+			if(current == TOMBSTONE){
+				break;
+			}
+			idx = (idx + 1) & mask;
+		}
+		
+		int base = idx * REF_SLOT_SIZE;
+		refs.putLong(base, videoId);
+		refs.putInt(base + 8, hash);
+		refs.putShort(base + 12, (short)refId.length());
+		for(int i=0; i<refId.length(); i++){
+			refs.putChar(base + 14 + (2 * i), refId.charAt(i));
+		}
+		increment(H_REFS, 1);
+		return NOT_FOUND;
+	}
+	
+	public synchronized long removeReferenceId(String refId){
+		if(refId == null){
+			return NOT_FOUND;
+		}
+		int slot = findRefSlot(refId);
+		if(slot < 0){
+			return NOT_FOUND;
+		}
+		
+		long previous = refs.getLong(slot * REF_SLOT_SIZE);
+		refs.putLong(slot * REF_SLOT_SIZE, TOMBSTONE);
+		increment(H_REFS, -1);
+		return previous;
+	}
+	
+	public synchronized void clear(){
+		for(int i=0; i<idCapacity; i++){
+			ids.putLong(i * idSlotSize, EMPTY);
+			ids.put(i * idSlotSize + 17, (byte)0);
+		}
+		for(int i=0; i<refCapacity; i++){
+			refs.putLong(i * REF_SLOT_SIZE, EMPTY);
+		}
+		header.putInt(H_STATES,   0);
+		header.putInt(H_DATES,    0);
+		header.putInt(H_ID_USED,  0);
+		header.putInt(H_REFS,     0);
+		header.putInt(H_REF_USED, 0);
+		header.putInt(H_PRINTS,   0);
+		clearStateCounts();
+		generation++;
+		modifications++;
+	}
+	
+	// ---------------- Persistence ---------------------------
+	public synchronized long getSyncWatermark(){
+		return header.getLong(H_WATERMARK);
+	}
+	
+	public synchronized void setSyncWatermark(long syncWatermark){
+		header.putLong(H_WATERMARK, syncWatermark);
+	}
+	
+	public Boolean isPersistent(){
+		return file != null;
+	}
+	
+	public File getFile(){
+		return file;
+	}
+	
+	public Boolean isReadOnly(){
+		return readOnly;
+	}
+	
+	/**
+	 * <p>
+	 *    Flushes all changes to the mapped file.  Does nothing for an index
+	 *    held in direct buffers, or one mapped read-only.
+	 * </p>
+	 */
+	public synchronized void force(){
+		if((file == null) || readOnly){
+			return;
+		}
+		((MappedByteBuffer)header).force();
+		((MappedByteBuffer)ids).force();
+		((MappedByteBuffer)refs).force();
+	}
+	
+	/**
+	 * <p>
+	 *    Flushes and closes the index.  The index can't be used afterwards.
+	 * </p>
+	 * 
+	 * @throws IOException If the underlying file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		force();
+		if(raf != null){
+			raf.close();
+			raf = null;
+		}
+		header = null;
+		ids    = null;
+		refs   = null;
+	}
+	
+	// ---------------- Map views ---------------------------
+	public synchronized Map<Long,ItemStateEnum> getStateMap(){
+		if(stateMap == null){
+			stateMap = new StateMap();
+		}
+		return stateMap;
+	}
+	
+	public synchronized Map<Long,Date> getLastModifiedMap(){
+		if(lastModifiedMap == null){
+			lastModifiedMap = new LastModifiedMap();
+		}
+		return lastModifiedMap;
+	}
+	
+	public synchronized Map<String,Long> getReferenceIdMap(){
+		if(referenceIdMap == null){
+			referenceIdMap = new ReferenceIdMap();
+		}
+		return referenceIdMap;
+	}
+	
+	// ---------------- Hash table internals ---------------------------
+	private static int mix(long key){
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdl;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+	
+	private static int grow(int capacity, int live, int max){
+		// Only double when the table is genuinely full, otherwise a rehash
+		// at the same size is enough to clear out removed slots
+		int newCapacity = capacity;
+		if((live + 1) > (capacity * MAX_LOAD / 2)){
+			newCapacity = capacity * 2;
+		}
+		if(newCapacity > max){
+			throw new IllegalStateException("Video index can't grow beyond " + max + " slots.");
+		}
+		return newCapacity;
+	}
+	
+	private static byte encodeState(ItemStateEnum state){
+		for(byte i=1; i<STATES.length; i++){
+			if(STATES[i].equals(state)){
+				return i;
+			}
+		}
+		return 0;
+	}
+	
+	private static void checkVideoId(long videoId){
+		if(videoId <= 0){
+			throw new IllegalArgumentException("Video id '" + videoId + "' can't be stored in the off-heap index.");
+		}
+	}
+	
+	private void increment(int headerOffset, int delta){
+		header.putInt(headerOffset, header.getInt(headerOffset) + delta);
+	}
+	
+	private void clearStateCounts(){
+		for(int i=0; i<STATES.length; i++){
+			header.putInt(H_BY_STATE + (4 * i), 0);
+		}
+	}
+	
+	private byte flags(int slot){
+		return ids.get(slot * idSlotSize + 17);
+	}
+	
+	private void clearIdFlag(int slot, byte flag){
+		int  base  = slot * idSlotSize;
+		byte flags = (byte)(ids.get(base + 17) & ~flag);
+		ids.put(base + 17, flags);
+		if(flags == 0){
+			ids.putLong(base, TOMBSTONE);
+		}
+	}
+	
+	private int findIdSlot(long videoId){
+		if(videoId <= 0){
+			return -1;
+		}
+		int mask = idCapacity - 1;
+		int idx  = mix(videoId) & mask;
+		while(true){
+			long current = ids.getLong(idx * idSlotSize);
+			if(current == videoId){
+				return idx;
+			}
+			if(current == EMPTY){
+				return -1;
+			}
+			idx = (idx + 1) & mask;
+		}
+	}
+	
+	private int claimIdSlot(long videoId){
+		checkVideoId(videoId);
+		
+		int slot = findIdSlot(videoId);
+		if(slot >= 0){
+			return slot;
+		}
+		
+		if(header.getInt(H_ID_USED) + 1 > idCapacity * MAX_LOAD){
+			int live = Math.max(Math.max(getStateCount(), getLastModifiedCount()), getFingerprintCount());
+			rehash(grow(idCapacity, live, MAX_ID_SLOTS), refCapacity);
+		}
+		
+		int mask = idCapacity - 1;
+		int idx  = mix(videoId) & mask;
+		while(true){
+			long current = ids.getLong(idx * idSlotSize);
+			if(current == EMPTY){
+				increment(H_ID_USED, 1);
+				break;
+			}
+			if(current == TOMBSTONE){
+				break;
+			}
+			idx = (idx + 1) & mask;
+		}
+		
+		ids.putLong(idx * idSlotSize, videoId);
+		ids.put(idx * idSlotSize + 17, (byte)0);
+		return idx;
+	}
+	
+	private int findRefSlot(String refId){
+		int hash = refId.hashCode();
+		int len  = refId.length();
+		int mask = refCapacity - 1;
+		int idx  = mix(hash) & mask;
+		while(true){
+			int  base    = idx * REF_SLOT_SIZE;
+			long current = refs.getLong(base);
+			if(current == EMPTY){
+				return -1;
+			}
+			if((current != TOMBSTONE) && (refs.getInt(base + 8) == hash) && (refs.getShort(base + 12) == len)){
+				boolean match = true;
+				for(int i=0; match && (i<len); i++){
+					match = (refs.getChar(base + 14 + (2 * i)) == refId.charAt(i));
+				}
+				if(match){
+					return idx;
+				}
+			}
+			idx = (idx + 1) & mask;
+		}
+	}
+	
+	private String readRefId(int slot){
+		int  base  = slot * REF_SLOT_SIZE;
+		int  len   = refs.getShort(base + 12);
+		char[] chars = new char[len];
+		for(int i=0; i<len; i++){
+			chars[i] = refs.getChar(base + 14 + (2 * i));
+		}
+		return new String(chars);
+	}
+	
+	private void rehash(int newIdCapacity, int newRefCapacity){
+		if(readOnly){
+			// Growing would replace the file under the process that owns it
+			throw new ReadOnlyBufferException();
+		}
+		
+		File              target = (file == null) ? null : new File(file.getAbsolutePath() + ".rehash");
+		OffHeapVideoIndex copy   = new OffHeapVideoIndex(target);
+		
+		try {
+			copy.create(newIdCapacity, newRefCapacity);
+			copy.setSyncWatermark(getSyncWatermark());
+			
+			for(int i=0; i<idCapacity; i++){
+				int  base    = i * idSlotSize;
+				long videoId = ids.getLong(base);
+				if((videoId == EMPTY) || (videoId == TOMBSTONE)){
+					continue;
+				}
+				byte flags = ids.get(base + 17);
+				if((flags & FLAG_STATE) != 0){
+					copy.putState(videoId, STATES[ids.get(base + 16)]);
+				}
+				if((flags & FLAG_DATE) != 0){
+					copy.putLastModified(videoId, ids.getLong(base + 8));
+				}
+				if((flags & FLAG_PRINT) != 0){
+					copy.putFingerprint(videoId, ids.getLong(base + 24));
+				}
+			}
+			
+			for(int i=0; i<refCapacity; i++){
+				long videoId = refs.getLong(i * REF_SLOT_SIZE);
+				if((videoId == EMPTY) || (videoId == TOMBSTONE)){
+					continue;
+				}
+				copy.putReferenceId(readRefId(i), videoId);
+			}
+			
+			if(file != null){
+				copy.force();
+				raf.close();
+				if(! target.renameTo(file)){
+					throw new IOException("Couldn't move rehashed index '" + target.getAbsolutePath() + "' over '" + file.getAbsolutePath() + "'.");
+				}
+			}
+		}
+		catch(IOException ioe){
+			throw new IllegalStateException("Caught " + ioe + " trying to grow the off-heap video index.", ioe);
+		}
+		
+		raf         = copy.raf;
+		header      = copy.header;
+		ids         = copy.ids;
+		refs        = copy.refs;
+		idSlotSize  = copy.idSlotSize;
+		idCapacity  = copy.idCapacity;
+		refCapacity = copy.refCapacity;
+		generation++;
+	}
+	
+	// ---------------- Map view implementations ---------------------------
+	/**
+	 * <p>
+	 *    The lock writers of the given map hold: the owning index for one of
+	 *    its map views, otherwise the map itself, as for a synchronized map.
+	 *    Hold it while iterating, since a rehash by another thread ends any
+	 *    iteration in progress.
+	 * </p>
+	 */
+	static Object lockFor(Map<?,?> map){
+		return (map instanceof IndexMap) ? ((IndexMap<?,?>)map).owner() : map;
+	}
+	
+	private abstract class IndexMap<K,V> extends AbstractMap<K,V> {
+		OffHeapVideoIndex owner(){
+			return OffHeapVideoIndex.this;
+		}
+	}
+	
+	private abstract class SlotIterator<E> implements Iterator<E> {
+		private int     expectedGeneration = generation;
+		private int     next               = -1;
+		private int     current            = -1;
+		
+		SlotIterator(){
+			advance();
+		}
+		
+		abstract int     capacity();
+		abstract boolean live(int slot);
+		abstract E       entry(int slot);
+		abstract void    remove(int slot);
+		
+		private void advance(){
+			synchronized(OffHeapVideoIndex.this){
+				next++;
+				while((next < capacity()) && (! live(next))){
+					next++;
+				}
+			}
+		}
+		
+		public boolean hasNext(){
+			return next < capacity();
+		}
+		
+		public E next(){
+			synchronized(OffHeapVideoIndex.this){
+				if(expectedGeneration != generation){
+					throw new ConcurrentModificationException();
+				}
+				if(! hasNext()){
+					throw new NoSuchElementException();
+				}
+				current = next;
+				E entry = entry(current);
+				advance();
+				return entry;
+			}
+		}
+		
+		public void remove(){
+			synchronized(OffHeapVideoIndex.this){
+				if(current < 0){
+					throw new IllegalStateException();
+				}
+				remove(current);
+				current = -1;
+				expectedGeneration = generation;
+			}
+		}
+	}
+	
+	private class StateMap extends IndexMap<Long,ItemStateEnum> {
+		public ItemStateEnum get(Object key){
+			return (key instanceof Long) ? getState((Long)key) : null;
+		}
+		
+		public boolean containsKey(Object key){
+			return (key instanceof Long) && containsVideo((Long)key);
+		}
+		
+		public ItemStateEnum put(Long key, ItemStateEnum value){
+			return putState(key, value);
+		}
+		
+		public ItemStateEnum remove(Object key){
+			return (key instanceof Long) ? removeState((Long)key) : null;
+		}
+		
+		public int size(){
+			return getStateCount();
+		}
+		
+		public void clear(){
+			synchronized(OffHeapVideoIndex.this){
+				for(int i=0; i<idCapacity; i++){
+					if((ids.getLong(i * idSlotSize) > 0) && ((flags(i) & FLAG_STATE) != 0)){
+						clearIdFlag(i, FLAG_STATE);
+					}
+				}
+				header.putInt(H_STATES, 0);
+				clearStateCounts();
+				modifications++;
+			}
+		}
+		
+		public Set<Map.Entry<Long,ItemStateEnum>> entrySet(){
+			return new AbstractSet<Map.Entry<Long,ItemStateEnum>>(){
+				public int size(){
+					return getStateCount();
+				}
+				
+				public Iterator<Map.Entry<Long,ItemStateEnum>> iterator(){
+					return new SlotIterator<Map.Entry<Long,ItemStateEnum>>(){
+						int capacity(){
+							return idCapacity;
+						}
+						
+						boolean live(int slot){
+							return (ids.getLong(slot * idSlotSize) > 0) && ((flags(slot) & FLAG_STATE) != 0);
+						}
+						
+						Map.Entry<Long,ItemStateEnum> entry(int slot){
+							return new SimpleImmutableEntry<Long,ItemStateEnum>(ids.getLong(slot * idSlotSize), STATES[ids.get(slot * idSlotSize + 16)]);
+						}
+						
+						void remove(int slot){
+							removeState(ids.getLong(slot * idSlotSize));
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	private class LastModifiedMap extends IndexMap<Long,Date> {
+		public Date get(Object key){
+			if(! (key instanceof Long)){
+				return null;
+			}
+			long date = getLastModified((Long)key);
+			return (date == NO_DATE) ? null : new Date(date);
+		}
+		
+		public boolean containsKey(Object key){
+			return (key instanceof Long) && (getLastModified((Long)key) != NO_DATE);
+		}
+		
+		public Date put(Long key, Date value){
+			if(value == null){
+				throw new NullPointerException("Off-heap index can't store null last modified dates.");
+			}
+			long previous = putLastModified(key, value.getTime());
+			return (previous == NO_DATE) ? null : new Date(previous);
+		}
+		
+		public Date remove(Object key){
+			if(! (key instanceof Long)){
+				return null;
+			}
+			long previous = removeLastModified((Long)key);
+			return (previous == NO_DATE) ? null : new Date(previous);
+		}
+		
+		public int size(){
+			return getLastModifiedCount();
+		}
+		
+		public void clear(){
+			synchronized(OffHeapVideoIndex.this){
+				for(int i=0; i<idCapacity; i++){
+					if((ids.getLong(i * idSlotSize) > 0) && ((flags(i) & FLAG_DATE) != 0)){
+						clearIdFlag(i, FLAG_DATE);
+					}
+				}
+				header.putInt(H_DATES, 0);
+				modifications++;
+			}
+		}
+		
+		public Set<Map.Entry<Long,Date>> entrySet(){
+			return new AbstractSet<Map.Entry<Long,Date>>(){
+				public int size(){
+					return getLastModifiedCount();
+				}
+				
+				public Iterator<Map.Entry<Long,Date>> iterator(){
+					return new SlotIterator<Map.Entry<Long,Date>>(){
+						int capacity(){
+							return idCapacity;
+						}
+						
+						boolean live(int slot){
+							return (ids.getLong(slot * idSlotSize) > 0) && ((flags(slot) & FLAG_DATE) != 0);
+						}
+						
+						Map.Entry<Long,Date> entry(int slot){
+							return new SimpleImmutableEntry<Long,Date>(ids.getLong(slot * idSlotSize), new Date(ids.getLong(slot * idSlotSize + 8)));
+						}
+						
+						void remove(int slot){
+							removeLastModified(ids.getLong(slot * idSlotSize));
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	private class ReferenceIdMap extends IndexMap<String,Long> {
+		public Long get(Object key){
+			if(! (key instanceof String)){
+				return null;
+			}
+			long videoId = getVideoIdByReferenceId((String)key);
+			return (videoId == NOT_FOUND) ? null : videoId;
+		}
+		
+		public boolean containsKey(Object key){
+			return (key instanceof String) && (getVideoIdByReferenceId((String)key) != NOT_FOUND);
+		}
+		
+		public Long put(String key, Long value){
+			if(value == null){
+				throw new NullPointerException("Off-heap index can't store null video ids.");
+			}
+			long previous = putReferenceId(key, value);
+			return (previous == NOT_FOUND) ? null : previous;
+		}
+		
+		public Long remove(Object key){
+			if(! (key instanceof String)){
+				return null;
+			}
+			long previous = removeReferenceId((String)key);
+			return (previous == NOT_FOUND) ? null : previous;
+		}
+		
+		public int size(){
+			return getReferenceIdCount();
+		}
+		
+		public void clear(){
+			synchronized(OffHeapVideoIndex.this){
+				for(int i=0; i<refCapacity; i++){
+					if(refs.getLong(i * REF_SLOT_SIZE) > 0){
+						refs.putLong(i * REF_SLOT_SIZE, TOMBSTONE);
+					}
+				}
+				header.putInt(H_REFS, 0);
+			}
+		}
+		
+		public Set<Map.Entry<String,Long>> entrySet(){
+			return new AbstractSet<Map.Entry<String,Long>>(){
+				public int size(){
+					return getReferenceIdCount();
+				}
+				
+				public Iterator<Map.Entry<String,Long>> iterator(){
+					return new SlotIterator<Map.Entry<String,Long>>(){
+						int capacity(){
+							return refCapacity;
+						}
+						
+						boolean live(int slot){
+							return refs.getLong(slot * REF_SLOT_SIZE) > 0;
+						}
+						
+						Map.Entry<String,Long> entry(int slot){
+							return new SimpleImmutableEntry<String,Long>(readRefId(slot), refs.getLong(slot * REF_SLOT_SIZE));
+						}
+						
+						void remove(int slot){
+							removeReferenceId(readRefId(slot));
+						}
+					};
+				}
+			};
+		}
+	}
+}
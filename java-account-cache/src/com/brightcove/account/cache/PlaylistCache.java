@@ -0,0 +1,413 @@
+package com.brightcove.account.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+import com.brightcove.commons.catalog.objects.Playlist;
+import com.brightcove.commons.catalog.objects.Playlists;
+import com.brightcove.commons.catalog.objects.Video;
+import com.brightcove.commons.catalog.objects.enumerations.PlaylistFieldEnum;
+import com.brightcove.commons.catalog.objects.enumerations.PlaylistTypeEnum;
+import com.brightcove.commons.catalog.objects.enumerations.SortByTypeEnum;
+import com.brightcove.commons.catalog.objects.enumerations.SortOrderTypeEnum;
+import com.brightcove.commons.catalog.objects.enumerations.VideoFieldEnum;
+import com.brightcove.commons.xml.XalanUtils;
+import com.brightcove.mediaapi.exceptions.BrightcoveException;
+
+/**
+ * <p>
+ *    Mirrors the playlists of an account next to the videos held by an
+ *    {@link AccountCache}.
+ * </p>
+ * 
+ * <p>
+ *    Like videos, only the id and reference id indexes are kept in memory
+ *    (in the <code>playlists.xml</code> blob of the cache's
+ *    {@link CacheStorage}) and each playlist is written to its own
+ *    <code>playlists/&lt;id&gt;.xml</code> blob.  Playlists don't carry a last
+ *    modified date, so every refresh lists all of them, but only playlists
+ *    whose content fingerprint changed are rewritten.  Playlist videos are
+ *    requested with just their ids - the videos themselves come from the
+ *    video cache, and are filled back in when a playlist is read.
+ * </p>
+ * 
+ * <p>
+ *    Updates and reloads hold this object's lock; lookups don't, and go
+ *    through concurrent maps instead.
+ * </p>
+ */
+class PlaylistCache {
+	private static final Integer PAGE_SIZE  = 100;
+	private static final String  INDEX_NAME = "playlists.xml";
+	
+	private AccountCache              cache;
+	private volatile Map<Long,Long>   playlistFingerprints;
+	private volatile Map<String,Long> playlistsByReferenceId;
+	
+	PlaylistCache(AccountCache cache){
+		this.cache             = cache;
+		playlistFingerprints   = new ConcurrentHashMap<Long, Long>();
+		playlistsByReferenceId = new ConcurrentHashMap<String, Long>();
+	}
+	
+	synchronized void update(EnumSet<PlaylistFieldEnum> playlistFields) throws AccountCacheException {
+		if((cache.getReadApi() == null) || (cache.getAccount() == null)){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Must set ReadApi and BrightcoveAccount via appropriate constructor before updating playlists.");
+		}
+		
+		cache.info("Updating playlists from Media API...");
+		
+		EnumSet<VideoFieldEnum> videoFields = EnumSet.of(VideoFieldEnum.ID);
+		Set<Long>               seen        = new HashSet<Long>();
+		Integer                 written     = 0;
+		Integer                 pageNumber  = 0;
+		
+		while(true){
+			cache.debug("Getting playlist page '" + pageNumber + "'.");
+			
+			Playlists page = null;
+			try {
+				page = cache.getReadApi().FindAllPlaylists(cache.getAccount().getReadToken(), PAGE_SIZE, pageNumber, SortByTypeEnum.MODIFIED_DATE, SortOrderTypeEnum.DESC, videoFields, AccountCache.defaultCustomFields, playlistFields);
+			}
+			catch(BrightcoveException be){
+				throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_READ_EXCEPTION, "Caught " + be + " trying to read playlists page '" + pageNumber + "'.");
+			}
+			
+			if((page == null) || (page.size() < 1)){
+				break;
+			}
+			
+			for(Playlist playlist : page){
+				Long playlistId = playlist.getId();
+				if(playlistId == null){
+					throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_FIELDS, "Playlist has no Playlist Id, can't add to cache.");
+				}
+				seen.add(playlistId);
+				
+				String xmlString   = playlistToXml(playlist);
+				Long   fingerprint = AccountCache.fingerprint(xmlString);
+				if(fingerprint.equals(playlistFingerprints.get(playlistId))){
+					cache.minutia("    Playlist '" + playlistId + "' unchanged.");
+					continue;
+				}
+				
+				cache.debug("    Writing playlist '" + playlistId + "'.");
+				removeReferenceIds(playlistId);
+				writeBlob(idToPlaylistName(playlistId), xmlString);
+				playlistFingerprints.put(playlistId, fingerprint);
+				if(playlist.getReferenceId() != null){
+					playlistsByReferenceId.put(playlist.getReferenceId(), playlistId);
+				}
+				written++;
+			}
+			
+			if(page.size() < PAGE_SIZE){
+				break;
+			}
+			pageNumber++;
+		}
+		
+		Integer removed = 0;
+		for(Long playlistId : new ArrayList<Long>(playlistFingerprints.keySet())){
+			if(! seen.contains(playlistId)){
+				cache.debug("    Removing playlist '" + playlistId + "'.");
+				removeReferenceIds(playlistId);
+				playlistFingerprints.remove(playlistId);
+				deleteBlob(idToPlaylistName(playlistId));
+				removed++;
+			}
+		}
+		
+		cache.info("Playlists updated.  Total: " + playlistFingerprints.size() + ", written: " + written + ", removed: " + removed + ".");
+	}
+	
+	synchronized void serialize(Boolean stripInvalidCharacters) throws AccountCacheException {
+		try {
+			Document doc  = XalanUtils.createDocument("Playlists");
+			Element  root = doc.getDocumentElement();
+			
+			Element byId = doc.createElement("PlaylistsById");
+			root.appendChild(byId);
+			
+			for(Long playlistId : playlistFingerprints.keySet()){
+				Element playlist = doc.createElement("Playlist");
+				byId.appendChild(playlist);
+				
+				playlist.setAttribute("id", ""+playlistId);
+				playlist.setAttribute("fingerprint", ""+playlistFingerprints.get(playlistId));
+			}
+			
+			Element byRef = doc.createElement("PlaylistsByReferenceId");
+			root.appendChild(byRef);
+			
+			for(String refId : playlistsByReferenceId.keySet()){
+				Element playlist = doc.createElement("Playlist");
+				byRef.appendChild(playlist);
+				
+				playlist.setAttribute("referenceId", refId);
+				playlist.setAttribute("id", ""+playlistsByReferenceId.get(refId));
+			}
+			
+			if(stripInvalidCharacters){
+				XalanUtils.stripNonValidXMLCharacters(doc);
+			}
+			
+			writeBlob(INDEX_NAME, XalanUtils.prettyPrintWithTrAX(doc));
+		}
+		catch(Exception e){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + e + " trying to write playlist index.");
+		}
+	}
+	
+	synchronized void deserialize(){
+		Map<Long,Long>   fingerprints = new ConcurrentHashMap<Long, Long>();
+		Map<String,Long> byRef        = new ConcurrentHashMap<String, Long>();
+		
+		try {
+			byte[] index = cache.getStorage().readBlob(INDEX_NAME);
+			if(index == null){
+				cache.info("No playlist index found.  Starting from scratch.");
+				playlistFingerprints   = fingerprints;
+				playlistsByReferenceId = byRef;
+				return;
+			}
+			
+			Document doc = parse(index);
+			
+			List<Node> playlists = XalanUtils.getNodesFromXPath(doc, "/Playlists/PlaylistsById/Playlist");
+			if(playlists != null){
+				for(Node playlist : playlists){
+					Long id          = Long.parseLong(((Element)playlist).getAttribute("id"));
+					Long fingerprint = Long.parseLong(((Element)playlist).getAttribute("fingerprint"));
+					fingerprints.put(id, fingerprint);
+				}
+			}
+			
+			playlists = XalanUtils.getNodesFromXPath(doc, "/Playlists/PlaylistsByReferenceId/Playlist");
+			if(playlists != null){
+				for(Node playlist : playlists){
+					String refId = ((Element)playlist).getAttribute("referenceId");
+					Long   id    = Long.parseLong(((Element)playlist).getAttribute("id"));
+					byRef.put(refId, id);
+				}
+			}
+		}
+		catch(Exception e){
+			cache.info("Couldn't read playlist index (" + e + ").  Starting from scratch.");
+			playlistFingerprints   = new ConcurrentHashMap<Long, Long>();
+			playlistsByReferenceId = new ConcurrentHashMap<String, Long>();
+			return;
+		}
+		
+		playlistFingerprints   = fingerprints;
+		playlistsByReferenceId = byRef;
+		cache.info("Playlist index read.  Total playlists: " + playlistFingerprints.size() + ".");
+	}
+	
+	Playlist getPlaylistById(Long playlistId){
+		if((playlistId == null) || (! playlistFingerprints.containsKey(playlistId))){
+			return null;
+		}
+		
+		Playlist playlist = null;
+		try {
+			byte[] xml = cache.getStorage().readBlob(idToPlaylistName(playlistId));
+			if(xml == null){
+				return null;
+			}
+			playlist = xmlToPlaylist(parse(xml));
+		}
+		catch(Exception e){
+			return null;
+		}
+		playlist.setVideos(lookupVideos(playlist));
+		return playlist;
+	}
+	
+	Playlist getPlaylistByReferenceId(String refId){
+		if(refId == null){
+			return null;
+		}
+		return getPlaylistById(playlistsByReferenceId.get(refId));
+	}
+	
+	List<Video> getPlaylistVideos(Long playlistId){
+		Playlist playlist = getPlaylistById(playlistId);
+		return (playlist == null) ? null : playlist.getVideos();
+	}
+	
+	private List<Video> lookupVideos(Playlist playlist){
+		List<Video> videos = new ArrayList<Video>();
+		if(playlist.getVideoIds() != null){
+			for(Long videoId : playlist.getVideoIds()){
+				Video video = cache.getVideoById(videoId);
+				if(video != null){
+					videos.add(video);
+				}
+			}
+		}
+		return videos;
+	}
+	
+	Set<Long> getPlaylistIds(){
+		return Collections.unmodifiableSet(new HashSet<Long>(playlistFingerprints.keySet()));
+	}
+	
+	Map<String,Long> getPlaylistsByReferenceId(){
+		return Collections.unmodifiableMap(new HashMap<String, Long>(playlistsByReferenceId));
+	}
+	
+	private void removeReferenceIds(Long playlistId){
+		for(String refId : new ArrayList<String>(playlistsByReferenceId.keySet())){
+			if(playlistId.equals(playlistsByReferenceId.get(refId))){
+				playlistsByReferenceId.remove(refId);
+			}
+		}
+	}
+	
+	private String playlistToXml(Playlist playlist) throws AccountCacheException {
+		try {
+			Document doc  = XalanUtils.createDocument("Playlist");
+			Element  root = doc.getDocumentElement();
+			
+			root.setAttribute("id", ""+playlist.getId());
+			if(playlist.getReferenceId() != null){
+				root.setAttribute("referenceId", playlist.getReferenceId());
+			}
+			if(playlist.getName() != null){
+				root.setAttribute("name", playlist.getName());
+			}
+			if(playlist.getShortDescription() != null){
+				root.setAttribute("shortDescription", playlist.getShortDescription());
+			}
+			if(playlist.getAccountId() != null){
+				root.setAttribute("accountId", ""+playlist.getAccountId());
+			}
+			if(playlist.getThumbnailUrl() != null){
+				root.setAttribute("thumbnailUrl", playlist.getThumbnailUrl());
+			}
+			if(playlist.getPlaylistType() != null){
+				root.setAttribute("playlistType", playlist.getPlaylistType().toString());
+			}
+			
+			Element filterTags = doc.createElement("FilterTags");
+			root.appendChild(filterTags);
+			if(playlist.getFilterTags() != null){
+				for(String tag : playlist.getFilterTags()){
+					Element filterTag = doc.createElement("FilterTag");
+					filterTags.appendChild(filterTag);
+					filterTag.setAttribute("value", tag);
+				}
+			}
+			
+			Element videoIds = doc.createElement("VideoIds");
+			root.appendChild(videoIds);
+			if(playlist.getVideoIds() != null){
+				for(Long videoId : playlist.getVideoIds()){
+					Element video = doc.createElement("Video");
+					videoIds.appendChild(video);
+					video.setAttribute("id", ""+videoId);
+				}
+			}
+			
+			if(cache.getStripInvalidCharacters()){
+				XalanUtils.stripNonValidXMLCharacters(doc);
+			}
+			return XalanUtils.prettyPrintWithTrAX(doc);
+		}
+		catch(Exception e){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Couldn't serialize playlist, exception caught: '" + e + "'.");
+		}
+	}
+	
+	private Playlist xmlToPlaylist(Document doc){
+		Element  root     = doc.getDocumentElement();
+		Playlist playlist = new Playlist();
+		
+		playlist.setId(Long.parseLong(root.getAttribute("id")));
+		if(root.hasAttribute("referenceId")){
+			playlist.setReferenceId(root.getAttribute("referenceId"));
+		}
+		if(root.hasAttribute("name")){
+			playlist.setName(root.getAttribute("name"));
+		}
+		if(root.hasAttribute("shortDescription")){
+			playlist.setShortDescription(root.getAttribute("shortDescription"));
+		}
+		if(root.hasAttribute("accountId")){
+			playlist.setAccountId(Long.parseLong(root.getAttribute("accountId")));
+		}
+		if(root.hasAttribute("thumbnailUrl")){
+			playlist.setThumbnailUrl(root.getAttribute("thumbnailUrl"));
+		}
+		if(root.hasAttribute("playlistType")){
+			playlist.setPlaylistType(PlaylistTypeEnum.valueOf(root.getAttribute("playlistType")));
+		}
+		
+		List<String> filterTags = new ArrayList<String>();
+		NodeList     tags       = root.getElementsByTagName("FilterTag");
+		for(int i=0; i<tags.getLength(); i++){
+			filterTags.add(((Element)tags.item(i)).getAttribute("value"));
+		}
+		playlist.setFilterTags(filterTags);
+		
+		List<Long> videoIds = new ArrayList<Long>();
+		NodeList   videos   = root.getElementsByTagName("Video");
+		for(int i=0; i<videos.getLength(); i++){
+			videoIds.add(Long.parseLong(((Element)videos.item(i)).getAttribute("id")));
+		}
+		playlist.setVideoIds(videoIds);
+		
+		return playlist;
+	}
+	
+	private Document parse(byte[] xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setValidating(false);
+		
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		return builder.parse(new ByteArrayInputStream(xml));
+	}
+	
+	private void writeBlob(String name, String xml) throws AccountCacheException {
+		try {
+			cache.getStorage().writeBlob(name, xml.getBytes("UTF-8"));
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to write '" + name + "'.");
+		}
+	}
+	
+	private void deleteBlob(String name){
+		try {
+			cache.getStorage().deleteBlob(name);
+		}
+		catch(IOException ioe){
+			cache.info("Couldn't remove '" + name + "' (" + ioe + ").");
+		}
+	}
+	
+	private String idToPlaylistName(Long playlistId){
+		return "playlists/" + playlistId + ".xml";
+	}
+}
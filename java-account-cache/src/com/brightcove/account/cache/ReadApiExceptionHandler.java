@@ -11,6 +11,11 @@ import com.brightcove.mediaapi.exceptions.BrightcoveExceptionHandler;
  * <p>
  *    This may not be thread safe...
  * </p>
+ * 
+ * <p>
+ *    While a {@link SyncToken} is set, retries wait on it instead of
+ *    sleeping, so a cancelled or expired sync gives up straight away.
+ * </p>
  *
  */
 public class ReadApiExceptionHandler implements BrightcoveExceptionHandler {
@@ -18,6 +23,8 @@ public class ReadApiExceptionHandler implements BrightcoveExceptionHandler {
 	private Integer maxTries   = 20;
 	private Long    tryDelay   = 60000l;
 	
+	private volatile SyncToken syncToken;
+	
 	public Boolean handleException(BrightcoveException be, String methodName) throws BrightcoveException {
 		if("FindModifiedVideos".equals(methodName)){
 			currentTry++;
@@ -26,7 +33,18 @@ public class ReadApiExceptionHandler implements BrightcoveExceptionHandler {
 				return false;
 			}
 			
-			try{ Thread.sleep(tryDelay); } catch(Exception e) {}
+			if(syncToken != null){
+				return syncToken.await(tryDelay);
+			}
+			
+			try{
+				Thread.sleep(tryDelay);
+			}
+			catch(InterruptedException ie){
+				// Give up rather than retry, and leave the interrupt for the caller
+				Thread.currentThread().interrupt();
+				return false;
+			}
 			
 			return true;
 		}
@@ -58,4 +76,12 @@ public class ReadApiExceptionHandler implements BrightcoveExceptionHandler {
 	public Long getTryDelay(){
 		return tryDelay;
 	}
+	
+	public SyncToken getSyncToken(){
+		return syncToken;
+	}
+	
+	public void setSyncToken(SyncToken syncToken){
+		this.syncToken = syncToken;
+	}
 }
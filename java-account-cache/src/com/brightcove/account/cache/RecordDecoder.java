@@ -0,0 +1,29 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ *    Recognises and decodes stored records that can't be sent as they are,
+ *    for {@link CacheStorage#transferRecord(Long, java.nio.channels.WritableByteChannel, RecordDecoder, MetadataTransferListener)}.
+ *    {@link MetadataCodec} is the one the cache uses, for compressed
+ *    metadata.
+ * </p>
+ */
+public interface RecordDecoder {
+	/**
+	 * @return Number of leading bytes {@link #isEncoded(ByteBuffer)} needs to see
+	 */
+	public Integer getHeaderSize();
+	
+	/**
+	 * @param header The start of a record - the header size, or the whole record if it is shorter
+	 */
+	public Boolean isEncoded(ByteBuffer header);
+	
+	/**
+	 * @return The bytes to send in place of the given whole, encoded record
+	 */
+	public byte[] decodeRecord(byte[] record) throws IOException;
+}
@@ -0,0 +1,301 @@
+package com.brightcove.account.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+
+/**
+ * <p>
+ *    Lets several processes share one cache directory with a single writer.
+ * </p>
+ * 
+ * <p>
+ *    Every process opens the same cache file and starts a coordinator on it.
+ *    Whichever process holds an OS file lock on <code>cacheFile.lock</code>
+ *    is the leader: it runs {@link AccountCache#UpdateCache()} every sync
+ *    interval and then publishes a new version number to
+ *    <code>cacheFile.version</code>.  The others keep their caches
+ *    read-only, poll the version file, and reload the index from disk when
+ *    it changes.  Followers also keep trying the lock, so if the leader dies
+ *    and the OS releases its lock one of them takes over.
+ * </p>
+ * 
+ * <p>
+ *    The cache index and metadata files are always replaced with a rename,
+ *    so followers never read a partially written file.  With a memory
+ *    mapped off-heap index followers map the index file read-only and see
+ *    the leader's updates as they are made.  Growing the index replaces the
+ *    file, so they map it again on each new version rather than keep
+ *    reading the old one.  Only the leader maps it writable, rebuilds it or
+ *    upgrades it.
+ * </p>
+ */
+public class SharedCacheCoordinator {
+	private AccountCache             cache;
+	private Long                     syncInterval;
+	private Long                     pollInterval;
+	private File                     lockFile;
+	private File                     versionFile;
+	private ScheduledExecutorService executor;
+	private RandomAccessFile         lockRaf;
+	private FileLock                 lock;
+	private Long                     version;
+	private Long                     lastSync;
+	
+	public SharedCacheCoordinator(AccountCache cache, Long syncInterval, Long pollInterval){
+		this.cache        = cache;
+		this.syncInterval = syncInterval;
+		this.pollInterval = pollInterval;
+	}
+	
+	/**
+	 * <p>
+	 *    Loads the cache from disk as a follower and starts competing for the
+	 *    write lock in the background.
+	 * </p>
+	 */
+	public synchronized void start() throws AccountCacheException {
+		if(executor != null){
+			return;
+		}
+		
+		// Coordination is through OS file locks, so only works for caches
+		// kept in files
+		File cacheFile = cache.getCacheFile();
+		if(cacheFile == null){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "A shared cache needs file storage.");
+		}
+		lockFile    = new File(cacheFile.getAbsolutePath() + ".lock");
+		versionFile = new File(cacheFile.getAbsolutePath() + ".version");
+		
+		try {
+			lockRaf = new RandomAccessFile(lockFile, "rw");
+		}
+		catch(IOException ioe){
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_MISSING_PARAMETERS, "Caught " + ioe + " trying to open lock file '" + lockFile.getAbsolutePath() + "'.");
+		}
+		
+		cache.setReadOnly(true);
+		version = readVersion();
+		reload();
+		
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "account-cache-coordinator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				tick();
+			}
+		}, 0, pollInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * <p>
+	 *    Stops syncing or following and gives up the write lock.  The cache
+	 *    is left read-only, since another process may now be writing to it.
+	 * </p>
+	 */
+	public void stop(){
+		ScheduledExecutorService running = null;
+		synchronized(this){
+			running  = executor;
+			executor = null;
+		}
+		if(running == null){
+			return;
+		}
+		
+		running.shutdown();
+		try {
+			running.awaitTermination(pollInterval + syncInterval, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		
+		synchronized(this){
+			stepDown();
+			try {
+				if(lock != null){
+					lock.release();
+				}
+				lockRaf.close();
+			}
+			catch(IOException ioe){
+				cache.info("Couldn't release lock file '" + lockFile.getAbsolutePath() + "' (" + ioe + ").");
+			}
+			finally {
+				lock    = null;
+				lockRaf = null;
+			}
+		}
+	}
+	
+	public synchronized Boolean isLeader(){
+		return lock != null;
+	}
+	
+	/**
+	 * <p>
+	 *    The version this process last published or loaded.
+	 * </p>
+	 */
+	public synchronized Long getVersion(){
+		return version;
+	}
+	
+	synchronized void tick(){
+		if(lockRaf == null){
+			return;
+		}
+		
+		try {
+			if(lock == null){
+				if(! tryLock()){
+					follow();
+					return;
+				}
+				
+				Boolean leading = false;
+				try {
+					lead();
+					leading = true;
+				}
+				finally {
+					if(! leading){
+						// Holding the lock without leading would stop this process
+						// syncing and every other one from taking over
+						releaseLock();
+					}
+				}
+			}
+			
+			if(System.currentTimeMillis() - lastSync >= syncInterval){
+				sync();
+			}
+		}
+		catch(AccountCacheException ace){
+			cache.info("Shared cache " + (isLeader() ? "sync" : "reload") + " failed: " + ace);
+		}
+		catch(RuntimeException re){
+			// Keep the schedule alive, the next tick retries
+			cache.info("Shared cache coordinator caught " + re + ".");
+		}
+	}
+	
+	private Boolean tryLock(){
+		try {
+			lock = lockRaf.getChannel().tryLock();
+		}
+		catch(OverlappingFileLockException ofle){
+			// Another cache in this JVM is the leader
+			lock = null;
+		}
+		catch(IOException ioe){
+			cache.info("Couldn't try lock file '" + lockFile.getAbsolutePath() + "' (" + ioe + ").");
+			lock = null;
+		}
+		return lock != null;
+	}
+	
+	private void releaseLock(){
+		stepDown();
+		try {
+			lock.release();
+		}
+		catch(IOException ioe){
+			cache.info("Couldn't release lock file '" + lockFile.getAbsolutePath() + "' (" + ioe + ").");
+		}
+		finally {
+			lock = null;
+		}
+	}
+	
+	private void lead() throws AccountCacheException {
+		cache.info("Acquired '" + lockFile.getAbsolutePath() + "', taking over as cache writer.");
+		
+		// Catch up with whatever the last leader wrote before it went away,
+		// including change log entries it never got to publish a version for.
+		// Writable first, so the off-heap index is mapped read-write again,
+		// and with the change log reopened before anything is appended to it.
+		cache.setReadOnly(false);
+		cache.reopenChangeLog();
+		reload();
+		version = readVersion();
+		
+		// Carry on the previous leader's schedule rather than syncing at once
+		lastSync = versionFile.lastModified();
+	}
+	
+	/**
+	 * <p>
+	 *    Makes the cache read-only and maps a memory mapped off-heap index
+	 *    again read-only, before another process can take over writing it.
+	 * </p>
+	 */
+	private void stepDown(){
+		cache.setReadOnly(true);
+		try {
+			cache.reopenOffHeapIndex();
+		}
+		catch(AccountCacheException ace){
+			cache.info("Couldn't map off-heap index read-only (" + ace + ").");
+		}
+	}
+	
+	private void follow() throws AccountCacheException {
+		Long published = readVersion();
+		if(published.equals(version)){
+			return;
+		}
+		
+		cache.debug("Shared cache version changed from " + version + " to " + published + ", reloading.");
+		reload();
+		version = published;
+	}
+	
+	private void sync() throws AccountCacheException {
+		// Set up front so a failing sync waits for the next interval
+		lastSync = System.currentTimeMillis();
+		cache.UpdateCache();
+		
+		version = Math.max(version, readVersion()) + 1;
+		AccountCache.writeAtomically(versionFile, ""+version);
+		cache.debug("Published shared cache version " + version + ".");
+	}
+	
+	private void reload() throws AccountCacheException {
+		cache.reopenOffHeapIndex();
+		cache.Deserialize();
+		cache.refreshChangeLog();
+	}
+	
+	private Long readVersion(){
+		if(! versionFile.exists()){
+			return 0l;
+		}
+		
+		try {
+			return Long.parseLong(FileUtils.readFileToString(versionFile, "UTF-8").trim());
+		}
+		catch(Exception e){
+			cache.info("Couldn't read shared cache version from '" + versionFile.getAbsolutePath() + "' (" + e + ").");
+			return (version == null) ? 0l : version;
+		}
+	}
+}
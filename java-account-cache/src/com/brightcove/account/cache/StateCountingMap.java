@@ -0,0 +1,137 @@
+package com.brightcove.account.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+
+/**
+ * <p>
+ *    Wraps the heap videos-by-id map of an {@link AccountCache} and keeps a
+ *    running count of videos per item state, so counting videos by state
+ *    doesn't need to walk the index.
+ * </p>
+ * 
+ * <p>
+ *    All access goes through this map; changing the wrapped map directly
+ *    will throw the counts off.
+ * </p>
+ */
+class StateCountingMap extends AbstractMap<Long,ItemStateEnum> {
+	private Map<Long,ItemStateEnum>        delegate;
+	private EnumMap<ItemStateEnum,Integer> counts;
+	private Integer                        unknownCount;
+	private Long                           modifications;
+	
+	StateCountingMap(Map<Long,ItemStateEnum> delegate){
+		this.delegate = delegate;
+		counts        = new EnumMap<ItemStateEnum, Integer>(ItemStateEnum.class);
+		unknownCount  = 0;
+		modifications = 0l;
+		
+		for(ItemStateEnum state : delegate.values()){
+			adjust(state, 1);
+		}
+	}
+	
+	synchronized Integer getCount(ItemStateEnum state){
+		if(state == null){
+			return unknownCount;
+		}
+		Integer count = counts.get(state);
+		return (count == null) ? 0 : count;
+	}
+	
+	synchronized Long getModificationCount(){
+		return modifications;
+	}
+	
+	Map<Long,ItemStateEnum> getDelegate(){
+		return delegate;
+	}
+	
+	private void adjust(ItemStateEnum state, Integer delta){
+		if(state == null){
+			unknownCount += delta;
+			return;
+		}
+		counts.put(state, getCount(state) + delta);
+	}
+	
+	public synchronized ItemStateEnum get(Object key){
+		return delegate.get(key);
+	}
+	
+	public synchronized boolean containsKey(Object key){
+		return delegate.containsKey(key);
+	}
+	
+	public synchronized int size(){
+		return delegate.size();
+	}
+	
+	public synchronized ItemStateEnum put(Long key, ItemStateEnum value){
+		Boolean       existed  = delegate.containsKey(key);
+		ItemStateEnum previous = delegate.put(key, value);
+		if(existed){
+			adjust(previous, -1);
+		}
+		adjust(value, 1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized ItemStateEnum remove(Object key){
+		if(! delegate.containsKey(key)){
+			return null;
+		}
+		ItemStateEnum previous = delegate.remove(key);
+		adjust(previous, -1);
+		modifications++;
+		return previous;
+	}
+	
+	public synchronized void clear(){
+		delegate.clear();
+		counts.clear();
+		unknownCount = 0;
+		modifications++;
+	}
+	
+	public Set<Map.Entry<Long,ItemStateEnum>> entrySet(){
+		return new AbstractSet<Map.Entry<Long,ItemStateEnum>>(){
+			public int size(){
+				return StateCountingMap.this.size();
+			}
+			
+			public Iterator<Map.Entry<Long,ItemStateEnum>> iterator(){
+				final Iterator<Map.Entry<Long,ItemStateEnum>> entries = delegate.entrySet().iterator();
+				
+				return new Iterator<Map.Entry<Long,ItemStateEnum>>(){
+					private Map.Entry<Long,ItemStateEnum> current;
+					
+					public boolean hasNext(){
+						return entries.hasNext();
+					}
+					
+					public Map.Entry<Long,ItemStateEnum> next(){
+						current = entries.next();
+						return new SimpleImmutableEntry<Long,ItemStateEnum>(current);
+					}
+					
+					public void remove(){
+						synchronized(StateCountingMap.this){
+							entries.remove();
+							adjust(current.getValue(), -1);
+							modifications++;
+						}
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,162 @@
+package com.brightcove.account.cache;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.account.cache.exceptions.AccountCacheExceptionCode;
+import com.brightcove.commons.xml.XalanUtils;
+
+/**
+ * <p>
+ *    How far a call to {@link AccountCache#UpdateCache(SyncToken)} got.
+ * </p>
+ * 
+ * <p>
+ *    The Media API lists videos newest first, so a sync that stops early
+ *    has read every video modified between its floor (the oldest video on
+ *    the last page it finished) and its ceiling (the newest video it saw),
+ *    but none between its target (the watermark it was working down to) and
+ *    the floor.  That range is saved with the cache, and the next sync
+ *    heading for the same target skips ahead to about where this one
+ *    stopped instead of reading the covered pages again.
+ * </p>
+ */
+public class SyncProgress {
+	static final String BLOB_NAME = "sync";
+	
+	private Date    target;
+	private Date    floor;
+	private Date    ceiling;
+	private Integer position;
+	private Integer pagesRead;
+	private Integer videosRead;
+	private Boolean complete;
+	
+	public SyncProgress(Date target){
+		this.target = target;
+		
+		position   = 0;
+		pagesRead  = 0;
+		videosRead = 0;
+		complete   = false;
+	}
+	
+	/**
+	 * <p>
+	 *    Records a finished page.
+	 * </p>
+	 * 
+	 * @param position Number of listed videos up to and including this page
+	 * @param floor    Oldest last modified date on the page
+	 * @param ceiling  Newest last modified date seen so far
+	 */
+	void pageRead(Integer position, Integer videos, Date floor, Date ceiling){
+		this.position = position;
+		this.ceiling  = ceiling;
+		if(floor != null){
+			this.floor = floor;
+		}
+		pagesRead++;
+		videosRead += videos;
+	}
+	
+	/**
+	 * <p>
+	 *    Reads saved progress, or returns null if there is none or it can't
+	 *    be read - a sync without it just starts from the top.
+	 * </p>
+	 */
+	static SyncProgress read(CacheStorage storage){
+		try {
+			byte[] data = storage.readBlob(BLOB_NAME);
+			if(data == null){
+				return null;
+			}
+			
+			Element      root     = XalanUtils.parseXml(new String(data, "UTF-8")).getDocumentElement();
+			SyncProgress progress = new SyncProgress(new Date(Long.parseLong(root.getAttribute("target"))));
+			progress.floor    = new Date(Long.parseLong(root.getAttribute("floor")));
+			progress.ceiling  = new Date(Long.parseLong(root.getAttribute("ceiling")));
+			progress.position = Integer.parseInt(root.getAttribute("position"));
+			return progress;
+		}
+		catch(Exception e){
+			return null;
+		}
+	}
+	
+	void write(CacheStorage storage) throws AccountCacheException {
+		try {
+			Document doc  = XalanUtils.createDocument("SyncProgress");
+			Element  root = doc.getDocumentElement();
+			root.setAttribute("target",   ""+target.getTime());
+			root.setAttribute("floor",    ""+floor.getTime());
+			root.setAttribute("ceiling",  ""+ceiling.getTime());
+			root.setAttribute("position", ""+position);
+			
+			storage.writeBlob(BLOB_NAME, XalanUtils.prettyPrintWithTrAX(doc).getBytes("UTF-8"));
+		}
+		catch (ParserConfigurationException pce) {
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + pce + " trying to write sync progress.");
+		}
+		catch (IOException ioe) {
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + ioe + " trying to write sync progress.");
+		}
+		catch (TransformerException te) {
+			throw new AccountCacheException(AccountCacheExceptionCode.ACCOUNT_CACHE_XML_WRITE_EXCEPTION, "Caught " + te + " trying to write sync progress.");
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    True if there is a range of pages to resume from - a sync stopped
+	 *    before it finished its first page leaves nothing to skip.
+	 * </p>
+	 */
+	Boolean isResumable(){
+		return (! complete) && (floor != null) && (ceiling != null) && (position > 0);
+	}
+	
+	void setComplete(Boolean complete){
+		this.complete = complete;
+	}
+	
+	public Boolean isComplete(){
+		return complete;
+	}
+	
+	public Date getTarget(){
+		return target;
+	}
+	
+	public Date getFloor(){
+		return floor;
+	}
+	
+	public Date getCeiling(){
+		return ceiling;
+	}
+	
+	public Integer getPosition(){
+		return position;
+	}
+	
+	public Integer getPagesRead(){
+		return pagesRead;
+	}
+	
+	public Integer getVideosRead(){
+		return videosRead;
+	}
+	
+	public String toString(){
+		return (complete ? "complete" : "stopped") + " after " + pagesRead + " pages (" + videosRead + " videos)";
+	}
+}
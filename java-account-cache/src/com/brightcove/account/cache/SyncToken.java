@@ -0,0 +1,101 @@
+package com.brightcove.account.cache;
+
+/**
+ * <p>
+ *    Bounds a call to {@link AccountCache#UpdateCache(SyncToken)} with a
+ *    deadline, a cancellation from another thread, or both.
+ * </p>
+ * 
+ * <p>
+ *    The sync checks the token between pages, and the Read API retry
+ *    handler waits on it rather than sleeping, so cancelling wakes a
+ *    pending retry straight away.  Interrupting the syncing thread has the
+ *    same effect.
+ * </p>
+ */
+public class SyncToken {
+	public static final Long NO_DEADLINE = Long.MAX_VALUE;
+	
+	private Long             deadline;
+	private volatile Boolean cancelled;
+	
+	public SyncToken(){
+		this(NO_DEADLINE);
+	}
+	
+	/**
+	 * @param deadline Time (millis since the epoch) after which no more pages are read
+	 */
+	public SyncToken(Long deadline){
+		this.deadline = deadline;
+		
+		cancelled = false;
+	}
+	
+	public static SyncToken withTimeout(Long timeout){
+		return new SyncToken(System.currentTimeMillis() + timeout);
+	}
+	
+	public synchronized void cancel(){
+		cancelled = true;
+		notifyAll();
+	}
+	
+	public Boolean isCancelled(){
+		return cancelled;
+	}
+	
+	public Boolean isExpired(){
+		return System.currentTimeMillis() >= deadline;
+	}
+	
+	/**
+	 * <p>
+	 *    True once the token has been cancelled, its deadline has passed or
+	 *    the current thread has been interrupted.
+	 * </p>
+	 */
+	public Boolean isStopped(){
+		return cancelled || isExpired() || Thread.currentThread().isInterrupted();
+	}
+	
+	/**
+	 * <p>
+	 *    Millis left before the deadline, never negative.
+	 * </p>
+	 */
+	public Long getRemaining(){
+		if(NO_DEADLINE.equals(deadline)){
+			return NO_DEADLINE;
+		}
+		return Math.max(0l, deadline - System.currentTimeMillis());
+	}
+	
+	/**
+	 * <p>
+	 *    Waits for up to the given time, returning early if the token is
+	 *    stopped in the meantime.  An interrupt ends the wait and is left
+	 *    set on the thread.
+	 * </p>
+	 * 
+	 * @return True if the wait ran its full length without the token being stopped
+	 */
+	public synchronized Boolean await(Long millis){
+		long until = System.currentTimeMillis() + Math.min(millis, getRemaining());
+		try {
+			long left = until - System.currentTimeMillis();
+			while((left > 0) && (! cancelled)){
+				wait(left);
+				left = until - System.currentTimeMillis();
+			}
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		return ! isStopped();
+	}
+	
+	public Long getDeadline(){
+		return deadline;
+	}
+}
@@ -0,0 +1,140 @@
+package com.brightcove.account.cache;
+
+import java.util.Date;
+
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+
+/**
+ * <p>
+ *    A single change made to a video in an {@link AccountCache}.
+ * </p>
+ * 
+ * <p>
+ *    Sequence numbers increase by one with every change, and are carried
+ *    over between runs when the change log is enabled.
+ * </p>
+ */
+public class VideoChangeEvent {
+	private Long                sequence;
+	private VideoChangeTypeEnum type;
+	private Long                videoId;
+	private String              referenceId;
+	private ItemStateEnum       itemState;
+	private ItemStateEnum       previousItemState;
+	private Date                lastModifiedDate;
+	
+	public VideoChangeEvent(Long sequence, VideoChangeTypeEnum type, Long videoId, String referenceId, ItemStateEnum itemState, ItemStateEnum previousItemState, Date lastModifiedDate){
+		this.sequence          = sequence;
+		this.type              = type;
+		this.videoId           = videoId;
+		this.referenceId       = referenceId;
+		this.itemState         = itemState;
+		this.previousItemState = previousItemState;
+		this.lastModifiedDate  = lastModifiedDate;
+	}
+	
+	/**
+	 * <p>
+	 *    Writes the event as one tab separated line, as stored in the change
+	 *    log.
+	 * </p>
+	 * 
+	 * @return Event as a single line (without the line break)
+	 */
+	public String toLogLine(){
+		String lastModified = (lastModifiedDate == null) ? "" : ""+lastModifiedDate.getTime();
+		return sequence + "\t" + type + "\t" + videoId + "\t" + escape(referenceId) + "\t" + nullToEmpty(itemState) + "\t" + nullToEmpty(previousItemState) + "\t" + lastModified;
+	}
+	
+	/**
+	 * <p>
+	 *    Reads an event written by {@link #toLogLine()}.
+	 * </p>
+	 * 
+	 * @param line Line from the change log
+	 * @return Event read
+	 */
+	public static VideoChangeEvent fromLogLine(String line){
+		String[] fields = line.split("\t", -1);
+		if(fields.length != 7){
+			throw new IllegalArgumentException("Malformed change log line '" + line + "'.");
+		}
+		
+		Date lastModified = null;
+		if(fields[6].length() > 0){
+			lastModified = new Date(Long.parseLong(fields[6]));
+		}
+		
+		return new VideoChangeEvent(Long.parseLong(fields[0]), VideoChangeTypeEnum.valueOf(fields[1]), Long.parseLong(fields[2]), unescape(fields[3]), toItemState(fields[4]), toItemState(fields[5]), lastModified);
+	}
+	
+	private static String nullToEmpty(ItemStateEnum state){
+		return (state == null) ? "" : state.toString();
+	}
+	
+	private static ItemStateEnum toItemState(String field){
+		return (field.length() == 0) ? null : ItemStateEnum.valueOf(field);
+	}
+	
+	private static String escape(String value){
+		if(value == null){
+			return "";
+		}
+		// Leading marker tells an empty reference id apart from a missing one
+		return "=" + value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+	
+	private static String unescape(String field){
+		if(field.length() == 0){
+			return null;
+		}
+		
+		StringBuilder value = new StringBuilder();
+		for(int i=1; i<field.length(); i++){
+			char c = field.charAt(i);
+			if((c == '\\') && (i + 1 < field.length())){
+				char escaped = field.charAt(++i);
+				switch(escaped){
+					case 't': c = '\t'; break;
+					case 'n': c = '\n'; break;
+					case 'r': c = '\r'; break;
+					default:  c = escaped;
+				}
+			}
+			value.append(c);
+		}
+		return value.toString();
+	}
+	
+	public String toString(){
+		return "[" + sequence + "] " + type + " video " + videoId + " (" + referenceId + ", " + itemState + ", " + lastModifiedDate + ")";
+	}
+	
+	public Long getSequence(){
+		return sequence;
+	}
+	
+	public VideoChangeTypeEnum getType(){
+		return type;
+	}
+	
+	public Long getVideoId(){
+		return videoId;
+	}
+	
+	public String getReferenceId(){
+		return referenceId;
+	}
+	
+	public ItemStateEnum getItemState(){
+		return itemState;
+	}
+	
+	public ItemStateEnum getPreviousItemState(){
+		return previousItemState;
+	}
+	
+	public Date getLastModifiedDate(){
+		return lastModifiedDate;
+	}
+}
@@ -0,0 +1,15 @@
+package com.brightcove.account.cache;
+
+/**
+ * <p>
+ *    Receives the changes an {@link AccountCache} makes to its videos.
+ * </p>
+ * 
+ * <p>
+ *    Listeners are called synchronously while the cache is being updated,
+ *    so they should hand any slow work off to another thread.
+ * </p>
+ */
+public interface VideoChangeListener {
+	public void videoChanged(VideoChangeEvent event);
+}
@@ -0,0 +1,13 @@
+package com.brightcove.account.cache;
+
+/**
+ * <p>
+ *    Kinds of change an {@link AccountCache} reports for a video.
+ * </p>
+ */
+public enum VideoChangeTypeEnum {
+	ADDED,
+	UPDATED,
+	REMOVED,
+	STATE_CHANGED;
+}
@@ -0,0 +1,180 @@
+package com.brightcove.account.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.brightcove.commons.catalog.objects.enumerations.ItemStateEnum;
+import com.brightcove.commons.catalog.objects.enumerations.SortOrderTypeEnum;
+
+/**
+ * <p>
+ *    Answers listing and histogram queries for an {@link AccountCache} from
+ *    its in-memory indexes only.
+ * </p>
+ * 
+ * <p>
+ *    The first query for a given state and ordering sorts the matching ids
+ *    once; the sorted snapshot is then reused for every page (and every
+ *    histogram) until the index changes.
+ * </p>
+ */
+class VideoIndexQuery {
+	private AccountCache          cache;
+	private Map<String,Snapshot>  snapshots;
+	private Long                  snapshotVersion;
+	
+	VideoIndexQuery(AccountCache cache){
+		this.cache      = cache;
+		snapshots       = new HashMap<String, Snapshot>();
+		snapshotVersion = -1l;
+	}
+	
+	synchronized List<Long> listVideoIds(ItemStateEnum state, VideoIndexSortEnum sortBy, SortOrderTypeEnum sortOrder, Integer pageSize, Integer pageNumber, Long version){
+		Snapshot snapshot = getSnapshot(state, sortBy, version);
+		Boolean  desc     = SortOrderTypeEnum.DESC.equals(sortOrder);
+		Long     start    = (long)pageSize * pageNumber;
+		Long     end      = Math.min(start + pageSize, snapshot.ids.length);
+		
+		List<Long> page = new ArrayList<Long>();
+		for(long i=start; i<end; i++){
+			int idx = (int)i;
+			if(desc){
+				idx = snapshot.ids.length - 1 - idx;
+			}
+			page.add(snapshot.ids[idx]);
+		}
+		return page;
+	}
+	
+	synchronized SortedMap<Date,Integer> getModifiedDateHistogram(Date from, Date to, Long bucketMillis, ItemStateEnum state, Long version){
+		Snapshot snapshot = getSnapshot(state, VideoIndexSortEnum.MODIFIED_DATE, version);
+		
+		SortedMap<Date,Integer> histogram   = new TreeMap<Date, Integer>();
+		long                    bucketStart = from.getTime();
+		long                    end         = to.getTime();
+		int                     lower       = lowerBound(snapshot.dates, bucketStart);
+		while(bucketStart < end){
+			// Stepping to the end directly once it's in reach, so adding a
+			// bucket near Long.MAX_VALUE can't overflow
+			long bucketEnd = (bucketMillis >= (end - bucketStart)) ? end : (bucketStart + bucketMillis);
+			int  upper     = lowerBound(snapshot.dates, bucketEnd);
+			histogram.put(new Date(bucketStart), upper - lower);
+			lower       = upper;
+			bucketStart = bucketEnd;
+		}
+		return histogram;
+	}
+	
+	private Snapshot getSnapshot(ItemStateEnum state, VideoIndexSortEnum sortBy, Long version){
+		if(! version.equals(snapshotVersion)){
+			snapshots.clear();
+			snapshotVersion = version;
+		}
+		
+		String   key      = state + "/" + sortBy;
+		Snapshot snapshot = snapshots.get(key);
+		if(snapshot == null){
+			snapshot = buildSnapshot(state, sortBy);
+			snapshots.put(key, snapshot);
+		}
+		return snapshot;
+	}
+	
+	private Snapshot buildSnapshot(ItemStateEnum state, VideoIndexSortEnum sortBy){
+		Map<Long,ItemStateEnum> videosById = cache.getVideosById();
+		Map<Long,Date>          dates      = cache.getVideoLastModifiedDates();
+		
+		long[] ids   = new long[videosById.size()];
+		int    count = 0;
+		// Read-through lookups may be adding videos while this walks
+		synchronized(OffHeapVideoIndex.lockFor(videosById)){
+			for(Map.Entry<Long,ItemStateEnum> video : videosById.entrySet()){
+				if((state != null) && (! state.equals(video.getValue()))){
+					continue;
+				}
+				if(count == ids.length){
+					ids = Arrays.copyOf(ids, (ids.length * 2) + 1);
+				}
+				ids[count++] = video.getKey();
+			}
+		}
+		
+		Snapshot snapshot = new Snapshot();
+		snapshot.ids = Arrays.copyOf(ids, count);
+		
+		if(VideoIndexSortEnum.MODIFIED_DATE.equals(sortBy)){
+			snapshot.dates = new long[count];
+			for(int i=0; i<count; i++){
+				Date date = dates.get(snapshot.ids[i]);
+				snapshot.dates[i] = (date == null) ? Long.MIN_VALUE : date.getTime();
+			}
+			sortByDate(snapshot.dates, snapshot.ids, new long[count], new long[count], 0, count);
+		}
+		else{
+			Arrays.sort(snapshot.ids);
+		}
+		
+		cache.debug("Built " + key(state, sortBy) + " index snapshot (" + count + " videos).");
+		return snapshot;
+	}
+	
+	private static String key(ItemStateEnum state, VideoIndexSortEnum sortBy){
+		return "'" + state + "/" + sortBy + "'";
+	}
+	
+	private static int lowerBound(long[] values, long value){
+		int low  = 0;
+		int high = values.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(values[mid] < value){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	// Merge sort on parallel arrays, ordered by date and then id, so the
+	// snapshot never has to box its contents
+	private static void sortByDate(long[] dates, long[] ids, long[] dateScratch, long[] idScratch, int from, int to){
+		if(to - from < 2){
+			return;
+		}
+		
+		int mid = (from + to) >>> 1;
+		sortByDate(dates, ids, dateScratch, idScratch, from, mid);
+		sortByDate(dates, ids, dateScratch, idScratch, mid, to);
+		
+		int left  = from;
+		int right = mid;
+		for(int i=from; i<to; i++){
+			boolean takeLeft = (right >= to) || ((left < mid) && ((dates[left] < dates[right]) || ((dates[left] == dates[right]) && (ids[left] <= ids[right]))));
+			if(takeLeft){
+				dateScratch[i] = dates[left];
+				idScratch[i]   = ids[left];
+				left++;
+			}
+			else{
+				dateScratch[i] = dates[right];
+				idScratch[i]   = ids[right];
+				right++;
+			}
+		}
+		System.arraycopy(dateScratch, from, dates, from, to - from);
+		System.arraycopy(idScratch,   from, ids,   from, to - from);
+	}
+	
+	private static class Snapshot {
+		long[] ids;
+		long[] dates;
+	}
+}
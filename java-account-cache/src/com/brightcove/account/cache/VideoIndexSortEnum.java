@@ -0,0 +1,12 @@
+package com.brightcove.account.cache;
+
+/**
+ * <p>
+ *    Orderings that can be answered from the in-memory indexes of an
+ *    {@link AccountCache}, without reading video metadata.
+ * </p>
+ */
+public enum VideoIndexSortEnum {
+	ID,
+	MODIFIED_DATE;
+}
@@ -13,7 +13,10 @@ public enum AccountCacheExceptionCode {
 	ACCOUNT_CACHE_XML_READ_EXCEPTION(900,  "Exception caught trying to read or parse Account Cache XML"),
 	ACCOUNT_CACHE_XML_WRITE_EXCEPTION(901, "Exception caught trying to write Account Cache XML"),
 	ACCOUNT_CACHE_MISSING_PARAMETERS(902,  "Missing required data to create or use account cache"),
-	ACCOUNT_CACHE_MISSING_FIELDS(903,      "Videos in cache are missing required fields");
+	ACCOUNT_CACHE_MISSING_FIELDS(903,      "Videos in cache are missing required fields"),
+	ACCOUNT_CACHE_INDEX_EXCEPTION(904,     "Exception caught trying to map or update the off-heap index"),
+	ACCOUNT_CACHE_READ_ONLY(905,           "Cache is read-only and can't be updated or written"),
+	ACCOUNT_CACHE_LOOKUP_EXCEPTION(906,    "Exception caught serving or requesting lookups from a lookup server");
 	
 	private final Integer code;
 	private final String  description;
@@ -4,6 +4,9 @@ import java.io.File;
 import java.util.logging.Logger;
 
 import com.brightcove.account.cache.AccountCache;
+import com.brightcove.account.cache.CacheStorage;
+import com.brightcove.account.cache.FileCacheStorage;
+import com.brightcove.account.cache.MemoryCacheStorage;
 import com.brightcove.account.cache.exceptions.AccountCacheException;
 import com.brightcove.commons.account.objects.BrightcoveAccount;
 import com.brightcove.commons.catalog.objects.Video;
@@ -39,6 +42,7 @@ public class CacheTests extends CommandLineProgram {
 		ct.usage("quick exit");
 		
 		ct.allowNormalArgument("read-token", "--read-token <Read API Token>", "--read-token: Media API Token from Brightcove account allowing read access", true);
+		ct.allowNormalArgument("storage",    "--storage <file|memory>",        "--storage: Where to keep the cache (default file, test-cache.xml)", false);
 		
 		ct.setMaxNakedArguments(0);
 		ct.setMinNakedArguments(0);
@@ -54,9 +58,14 @@ public class CacheTests extends CommandLineProgram {
 		parseArguments(args);
 		
 		String readToken            = getNormalArgument("read-token");
+		String storageType          = getNormalArgument("storage");
+		if(storageType == null){
+			storageType = "file";
+		}
 		
 		log.info("Configuration:\n" +
-			"\tRead token:             '" + readToken                   + "'.\n");
+			"\tRead token:             '" + readToken                   + "'.\n" +
+			"\tStorage:                '" + storageType                 + "'.\n");
 		
 		// Custom fields determine which custom fields to fill out on returned videos
 		// Set<String> customFields = CollectionUtils.CreateEmptyStringSet();
@@ -74,14 +83,25 @@ public class CacheTests extends CommandLineProgram {
 		account.setReadToken(readToken);
 		account.setAccountName("test");
 		
-		File    cacheFile = new File("test-cache.xml");
-		Logger  logger    = Logger.getLogger(this.getClass().getCanonicalName());
-		Integer logLevel  = AccountCache.LOG_INFORMATIONAL;
+		CacheStorage storage  = null;
+		Logger       logger   = Logger.getLogger(this.getClass().getCanonicalName());
+		Integer      logLevel = AccountCache.LOG_INFORMATIONAL;
+		
+		if("memory".equals(storageType)){
+			storage = new MemoryCacheStorage();
+		}
+		else if("file".equals(storageType)){
+			storage = new FileCacheStorage(new File("test-cache.xml"));
+		}
+		else{
+			usage("Unknown storage '" + storageType + "', expected file or memory.");
+			return;
+		}
 		
 		Boolean includeDeletedVideos = false;
 		
 		try {
-			AccountCache cache = AccountCache.getUpdatedCache(account, cacheFile, readApi, logger, logLevel, includeDeletedVideos);
+			AccountCache cache = AccountCache.getUpdatedCache(account, storage, readApi, logger, logLevel, includeDeletedVideos);
 			logger.info("Cache '" + cache + "' loaded.");
 			
 			Video video = cache.getVideoByIdUnfiltered(1336382591001l);
@@ -0,0 +1,204 @@
+package com.brightcove.account.cache.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+import com.brightcove.account.cache.AccountCache;
+import com.brightcove.account.cache.MemoryCacheStorage;
+import com.brightcove.account.cache.MetadataCodec;
+import com.brightcove.account.cache.exceptions.AccountCacheException;
+import com.brightcove.commons.account.objects.BrightcoveAccount;
+import com.brightcove.commons.catalog.objects.Videos;
+import com.brightcove.commons.system.commandLine.CommandLineProgram;
+import com.brightcove.commons.xml.XalanUtils;
+import com.brightcove.mediaapi.wrapper.ReadApi;
+
+/**
+ * <p>
+ *    Compares plain and compressed metadata storage for an existing cache:
+ *    bytes on disk, time to compress, and time to read, decompress and parse
+ *    every record.
+ * </p>
+ * 
+ * <p>
+ *    The first read pass is reported as "cold", but the records were just
+ *    written so they will usually still be in the OS page cache.  For a
+ *    truly cold number, drop the page cache between writing and reading
+ *    (e.g. <code>echo 3 &gt; /proc/sys/vm/drop_caches</code>) using
+ *    <code>--pause</code>.
+ * </p>
+ */
+public class MetadataCompressionBenchmark extends CommandLineProgram {
+	Logger log;
+	
+	/**
+	 * <p>
+	 *    Constructor
+	 * </p>
+	 */
+	public MetadataCompressionBenchmark(){
+		log = Logger.getLogger(this.getClass().getCanonicalName());
+	}
+	
+	/**
+	 * <p>
+	 *    Main execution kickoff
+	 * </p>
+	 * 
+	 * @param args Arguments passed in on command line
+	 */
+	public static void main(String[] args) {
+		MetadataCompressionBenchmark mcb = new MetadataCompressionBenchmark();
+		
+		mcb.allowNormalArgument("cache-file",  "--cache-file <Cache file>",       "--cache-file: Existing account cache to read metadata from", true);
+		mcb.allowNormalArgument("sample-size", "--sample-size <Records>",         "--sample-size: Number of records to train the dictionary from (default 500)", false);
+		mcb.allowNormalArgument("passes",      "--passes <Passes>",               "--passes: Number of read passes (default 5)", false);
+		mcb.allowNormalArgument("pause",       "--pause <true|false>",            "--pause: Wait for enter before the first read pass, to allow dropping the page cache", false);
+		
+		mcb.setMaxNakedArguments(0);
+		mcb.setMinNakedArguments(0);
+		
+		mcb.run(args);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.brightcove.commons.system.commandLine.CommandLineProgram#run(java.lang.String[])
+	 */
+	public void run(String[] args){
+		setCaller(this.getClass().getCanonicalName());
+		parseArguments(args);
+		
+		File    cacheFile  = new File(getNormalArgument("cache-file"));
+		Integer sampleSize = getIntegerArgument("sample-size", 500);
+		Integer passes     = getIntegerArgument("passes", 5);
+		Boolean pause      = "true".equals(getNormalArgument("pause"));
+		
+		log.info("Configuration:\n" +
+			"\tCache file:             '" + cacheFile.getAbsolutePath() + "'.\n" +
+			"\tSample size:            '" + sampleSize                  + "'.\n" +
+			"\tRead passes:            '" + passes                      + "'.\n");
+		
+		File workDir = new File(System.getProperty("java.io.tmpdir"), "metadata-benchmark-" + System.currentTimeMillis());
+		try {
+			AccountCache cache = new AccountCache(new BrightcoveAccount(0l), cacheFile, new ReadApi(), log, AccountCache.LOG_SILENT, true);
+			cache.Deserialize();
+			
+			List<String> records = new ArrayList<String>();
+			for(Long videoId : cache.getVideosById().keySet()){
+				ByteBuffer buffer = cache.getVideoMetadataBuffer(videoId);
+				if(buffer != null){
+					byte[] bytes = new byte[buffer.remaining()];
+					buffer.get(bytes);
+					records.add(new String(bytes, "UTF-8"));
+				}
+			}
+			log.info("Read " + records.size() + " metadata records.");
+			if(records.isEmpty()){
+				return;
+			}
+			
+			List<String> samples = new ArrayList<String>();
+			Integer      step    = Math.max(1, records.size() / sampleSize);
+			for(int i=0; (i<records.size()) && (samples.size() < sampleSize); i+=step){
+				samples.add(records.get(i));
+			}
+			
+			MetadataCodec plainCodec      = new MetadataCodec(new MemoryCacheStorage());
+			MetadataCodec dictionaryCodec = new MetadataCodec(new MemoryCacheStorage());
+			
+			Long start = System.nanoTime();
+			dictionaryCodec.train(samples);
+			log.info("Trained a " + dictionaryCodec.getDictionary(dictionaryCodec.getDictionaryId()).length + " byte dictionary from " + samples.size() + " records in " + millis(start) + " ms.");
+			
+			File plainDir      = new File(workDir, "plain");
+			File deflateDir    = new File(workDir, "deflate");
+			File dictionaryDir = new File(workDir, "dictionary");
+			
+			report("Plain",                write(records, plainDir, null));
+			report("Deflate",              write(records, deflateDir, plainCodec));
+			report("Deflate + dictionary", write(records, dictionaryDir, dictionaryCodec));
+			
+			if(pause){
+				log.info("Drop the page cache now, then press enter.");
+				System.in.read();
+			}
+			
+			for(int pass=0; pass<passes; pass++){
+				String label = (pass == 0) ? "cold" : "warm";
+				log.info("Read pass " + (pass + 1) + " (" + label + "):\n" +
+					"\tPlain:                  " + read(plainDir, plainCodec, records.size())           + " ms.\n" +
+					"\tDeflate:                " + read(deflateDir, plainCodec, records.size())         + " ms.\n" +
+					"\tDeflate + dictionary:   " + read(dictionaryDir, dictionaryCodec, records.size()) + " ms.\n");
+			}
+		}
+		catch(AccountCacheException ace){
+			usage(ace);
+		}
+		catch(Exception e){
+			usage(e);
+		}
+		finally {
+			FileUtils.deleteQuietly(workDir);
+		}
+	}
+	
+	/**
+	 * <p>
+	 *    Writes every record to its own file, compressed with the given
+	 *    codec or plain if it's null.
+	 * </p>
+	 * 
+	 * @return Total bytes written and time taken to encode, in ms
+	 */
+	private Long[] write(List<String> records, File dir, MetadataCodec codec) throws IOException {
+		FileUtils.forceMkdir(dir);
+		
+		Long bytes   = 0l;
+		Long encoded = 0l;
+		for(int i=0; i<records.size(); i++){
+			Long   start = System.nanoTime();
+			byte[] data  = (codec == null) ? records.get(i).getBytes("UTF-8") : codec.encode(records.get(i));
+			encoded += System.nanoTime() - start;
+			
+			FileUtils.writeByteArrayToFile(new File(dir, i + ".xml"), data);
+			bytes += data.length;
+		}
+		return new Long[]{ bytes, encoded / 1000000 };
+	}
+	
+	/**
+	 * <p>
+	 *    Reads, decodes and parses every record the way getVideoMetadata()
+	 *    does.
+	 * </p>
+	 * 
+	 * @return Time taken, in ms
+	 */
+	private Long read(File dir, MetadataCodec codec, Integer count) throws Exception {
+		Long start = System.nanoTime();
+		for(int i=0; i<count; i++){
+			String xml = codec.decode(FileUtils.readFileToByteArray(new File(dir, i + ".xml")));
+			new Videos(XalanUtils.parseXml(xml));
+		}
+		return millis(start);
+	}
+	
+	private void report(String label, Long[] result){
+		log.info(label + ": " + result[0] + " bytes, " + result[1] + " ms to encode.");
+	}
+	
+	private Integer getIntegerArgument(String name, Integer defaultValue){
+		String value = getNormalArgument(name);
+		return (value == null) ? defaultValue : Integer.valueOf(value);
+	}
+	
+	private static Long millis(Long startNanos){
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+}